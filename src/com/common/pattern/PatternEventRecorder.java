@@ -0,0 +1,52 @@
+package com.common.pattern;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/*
+  Records JDK Flight Recorder events for the checks in com.creational.pattern.PatternEvents and
+  com.structural.pattern.PatternEvents.
+  Every pattern event is declared @Enabled(false): while disabled, begin() and commit() reduce to a few field
+  writes that the JIT removes, so the instrumentation costs close to nothing until a recording enables it.
+ */
+public final class PatternEventRecorder {
+	public interface Action {
+		void run() throws Exception;
+	}
+
+	private PatternEventRecorder() {
+	}
+
+	//Runs the action with the given events enabled and returns what was recorded
+	public static List<RecordedEvent> record(Action action, String... eventNames) throws Exception {
+		Path file = Files.createTempFile("pattern-events", ".jfr");
+		try (Recording recording = new Recording()) {
+			for (String eventName : eventNames) {
+				recording.enable(eventName);
+			}
+			recording.start();
+			action.run();
+			recording.stop();
+			recording.dump(file);
+			return RecordingFile.readAllEvents(file);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	public static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+		return events.stream().filter(e -> e.getEventType().getName().equals(name)).collect(Collectors.toList());
+	}
+
+	public static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
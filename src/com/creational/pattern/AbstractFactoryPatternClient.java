@@ -1,5 +1,13 @@
 package com.creational.pattern;
 
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /*
  	Abstract Factory Pattern :
  	Interface or abstract class for creating families of related (or dependent) objects but without 
@@ -74,8 +82,117 @@ interface ElectricVehicle{
 
 //Abstract factory class
 abstract class Corporation {
+	//Bulk requests at least this large are filled in parallel
+	static final int PARALLEL_THRESHOLD = 16_384;
+	
 	public abstract MotorVehicle createMotorVehicle();
 	public abstract ElectricVehicle createElectricVehicle();
+	
+	//Bulk variants: the concrete create methods must be safe to call from several threads
+	public MotorVehicle[] createMotorVehicles(int n) {
+		MotorVehicle[] vehicles = new MotorVehicle[n];
+		fill(vehicles, this::createMotorVehicle);
+		return vehicles;
+	}
+	
+	public ElectricVehicle[] createElectricVehicles(int n) {
+		ElectricVehicle[] vehicles = new ElectricVehicle[n];
+		fill(vehicles, this::createElectricVehicle);
+		return vehicles;
+	}
+	
+	//Lazy variants: each product is created only when the stream pulls it, parallel() splits the range
+	public Stream<MotorVehicle> motorVehicles(long n) {
+		return StreamSupport.stream(new ProductSpliterator<>(this::createMotorVehicle, n), false);
+	}
+	
+	public Stream<ElectricVehicle> electricVehicles(long n) {
+		return StreamSupport.stream(new ProductSpliterator<>(this::createElectricVehicle, n), false);
+	}
+	
+	static <T> void fill(T[] products, Supplier<? extends T> creator) {
+		if (products.length < PARALLEL_THRESHOLD) {
+			for (int i = 0; i < products.length; i++) {
+				products[i] = creator.get();
+			}
+		} else {
+			ForkJoinPool.commonPool().invoke(new FillTask<>(products, creator, 0, products.length));
+		}
+	}
+	
+	private static class FillTask<T> extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int LEAF_SIZE = 4_096;
+		private final T[] products;
+		private final Supplier<? extends T> creator;
+		private final int from;
+		private final int to;
+		
+		FillTask(T[] products, Supplier<? extends T> creator, int from, int to) {
+			this.products = products;
+			this.creator = creator;
+			this.from = from;
+			this.to = to;
+		}
+		
+		protected void compute() {
+			if (to - from > LEAF_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new FillTask<>(products, creator, from, mid), new FillTask<>(products, creator, mid, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				products[i] = creator.get();
+			}
+		}
+	}
+}
+
+//Creates up to a fixed number of products on demand
+class ProductSpliterator<T> implements Spliterator<T> {
+	private static final long MIN_SPLIT = 1_024;
+	private final Supplier<? extends T> creator;
+	private long remaining;
+	
+	ProductSpliterator(Supplier<? extends T> creator, long count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("count must not be negative: " + count);
+		}
+		this.creator = creator;
+		this.remaining = count;
+	}
+	
+	public boolean tryAdvance(Consumer<? super T> action) {
+		if (remaining <= 0) {
+			return false;
+		}
+		remaining--;
+		action.accept(creator.get());
+		return true;
+	}
+	
+	public void forEachRemaining(Consumer<? super T> action) {
+		for (; remaining > 0; remaining--) {
+			action.accept(creator.get());
+		}
+	}
+	
+	public Spliterator<T> trySplit() {
+		if (remaining < MIN_SPLIT * 2) {
+			return null;
+		}
+		long half = remaining >>> 1;
+		remaining -= half;
+		return new ProductSpliterator<>(creator, half);
+	}
+	
+	public long estimateSize() {
+		return remaining;
+	}
+	
+	public int characteristics() {
+		return SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+	}
 }
 
 class FutureVehicleMotorCycle implements MotorVehicle {
@@ -129,6 +246,182 @@ class NextGenCorporation extends Corporation {
 }
 
 
+//Product that can be copied from a fully initialised template instead of being constructed again. Only worth
+//implementing for products with an expensive initialisation; the FutureVehicle and NextGen products construct
+//nothing and do not implement it.
+interface VehiclePrototype<T> {
+	//Copy sharing the template's referenced state
+	public T shallowCopy();
+	//Copy owning private copies of all mutable state
+	public T deepCopy();
+}
+
+enum CopyPolicy {
+	SHALLOW, DEEP
+}
+
+//Corporation that clones configured templates instead of running the constructor chain on every call.
+//Templates come from the wrapped corporation (or are installed explicitly) and can be reloaded at runtime.
+//A template that is not a VehiclePrototype is not cloned: that product is created by the wrapped corporation as
+//before, which is the case for every product of FutureVehicleCorporation and NextGenCorporation. Use
+//clonesMotorVehicles()/clonesElectricVehicles() to see which path is taken.
+class PrototypeCorporation extends Corporation {
+	private final Corporation corporation;
+	private final CopyPolicy policy;
+	private volatile MotorVehicle motorVehicleTemplate;
+	private volatile ElectricVehicle electricVehicleTemplate;
+
+	public PrototypeCorporation(Corporation corporation, CopyPolicy policy) {
+		this.corporation = corporation;
+		this.policy = policy;
+		reloadTemplates();
+	}
+
+	//Rebuilds both templates through the wrapped corporation
+	public void reloadTemplates() {
+		setMotorVehicleTemplate(corporation.createMotorVehicle());
+		setElectricVehicleTemplate(corporation.createElectricVehicle());
+	}
+
+	public void setMotorVehicleTemplate(MotorVehicle template) {
+		this.motorVehicleTemplate = template;
+	}
+
+	public void setElectricVehicleTemplate(ElectricVehicle template) {
+		this.electricVehicleTemplate = template;
+	}
+
+	//False when motor vehicles fall back to the wrapped corporation
+	public boolean clonesMotorVehicles() {
+		return motorVehicleTemplate instanceof VehiclePrototype;
+	}
+
+	//False when electric vehicles fall back to the wrapped corporation
+	public boolean clonesElectricVehicles() {
+		return electricVehicleTemplate instanceof VehiclePrototype;
+	}
+
+	@Override
+	public MotorVehicle createMotorVehicle() {
+		MotorVehicle template = motorVehicleTemplate;
+		if (template instanceof VehiclePrototype) {
+			return (MotorVehicle) copy((VehiclePrototype<?>) template);
+		}
+		return corporation.createMotorVehicle();
+	}
+
+	@Override
+	public ElectricVehicle createElectricVehicle() {
+		ElectricVehicle template = electricVehicleTemplate;
+		if (template instanceof VehiclePrototype) {
+			return (ElectricVehicle) copy((VehiclePrototype<?>) template);
+		}
+		return corporation.createElectricVehicle();
+	}
+
+	private Object copy(VehiclePrototype<?> template) {
+		return policy == CopyPolicy.DEEP ? template.deepCopy() : template.shallowCopy();
+	}
+}
+
+//Compares constructor based creation with prototype cloning for a product with a heavy initialisation.
+//Run with: java com.creational.pattern.PrototypeCreationBenchmark
+class PrototypeCreationBenchmark {
+	private static final int ITERATIONS = 2_000;
+
+	//Electric car whose constructor calibrates a battery table, identical for every new car
+	static class CalibratedElectricCar implements ElectricVehicle, VehiclePrototype<CalibratedElectricCar>, Cloneable {
+		private double[] chargeCurve;
+
+		CalibratedElectricCar() {
+			chargeCurve = new double[4_096];
+			for (int i = 0; i < chargeCurve.length; i++) {
+				chargeCurve[i] = Math.log1p(i) * Math.sqrt(i) / (1 + Math.exp(-i / 512.0));
+			}
+		}
+
+		public void build() {
+			System.out.println("Build calibrated electrical car");
+		}
+
+		public CalibratedElectricCar shallowCopy() {
+			try {
+				return (CalibratedElectricCar) clone();
+			} catch (CloneNotSupportedException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		public CalibratedElectricCar deepCopy() {
+			CalibratedElectricCar copy = shallowCopy();
+			copy.chargeCurve = chargeCurve.clone();
+			return copy;
+		}
+	}
+
+	static class CalibratedCorporation extends Corporation {
+		public MotorVehicle createMotorVehicle() {
+			return new NextGenMotorCycle();
+		}
+
+		public ElectricVehicle createElectricVehicle() {
+			return new CalibratedElectricCar();
+		}
+	}
+
+	public static void main(String[] args) {
+		Corporation constructed = new CalibratedCorporation();
+		Corporation shallow = new PrototypeCorporation(constructed, CopyPolicy.SHALLOW);
+		PrototypeCorporation deep = new PrototypeCorporation(constructed, CopyPolicy.DEEP);
+		for (int round = 0; round < 5; round++) {
+			System.out.printf("round %d constructor %8.1f ns/op, shallow clone %8.1f ns/op, deep clone %8.1f ns/op%n", round,
+					time(constructed), time(shallow), time(deep));
+		}
+		deep.reloadTemplates();
+		System.out.printf("after reload deep clone %8.1f ns/op%n", time(deep));
+		PrototypeCorporation nextGen = new PrototypeCorporation(new NextGenCorporation(), CopyPolicy.SHALLOW);
+		System.out.println("calibrated electric cars cloned: " + deep.clonesElectricVehicles()
+				+ ", next gen products cloned: " + (nextGen.clonesMotorVehicles() || nextGen.clonesElectricVehicles()));
+	}
+
+	static double time(Corporation corporation) {
+		ElectricVehicle[] sink = new ElectricVehicle[64];
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			sink[i & 63] = corporation.createElectricVehicle();
+		}
+		return (double) (System.nanoTime() - start) / ITERATIONS;
+	}
+}
+
+//Compares bulk creation against a loop of single createXxx() calls.
+//Run with: java com.creational.pattern.BulkCreationBenchmark [count]
+class BulkCreationBenchmark {
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		Corporation[] corporations = { new FutureVehicleCorporation(), new NextGenCorporation() };
+		for (int round = 0; round < 5; round++) {
+			for (Corporation corporation : corporations) {
+				long start = System.nanoTime();
+				MotorVehicle[] single = new MotorVehicle[count];
+				for (int i = 0; i < count; i++) {
+					single[i] = corporation.createMotorVehicle();
+				}
+				long loop = System.nanoTime() - start;
+				start = System.nanoTime();
+				MotorVehicle[] bulk = corporation.createMotorVehicles(count);
+				long bulkNanos = System.nanoTime() - start;
+				start = System.nanoTime();
+				long streamed = corporation.electricVehicles(count).parallel().filter(vehicle -> vehicle != null).count();
+				long stream = System.nanoTime() - start;
+				System.out.printf("round %d %-25s loop %6.1f ms, bulk %6.1f ms, parallel stream %6.1f ms (%d/%d/%d)%n", round,
+						corporation.getClass().getSimpleName(), loop / 1e6, bulkNanos / 1e6, stream / 1e6, single.length,
+						bulk.length, streamed);
+			}
+		}
+	}
+}
+
 public class AbstractFactoryPatternClient {
 
 	public static void main(String[] args) {
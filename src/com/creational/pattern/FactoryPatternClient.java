@@ -1,4 +1,34 @@
 package com.creational.pattern;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 /*
  
     Factory Method Pattern:
@@ -40,6 +70,14 @@ interface MotorVehicle {
 	public void build();
 }
 
+//Registers a MotorVehicle in the build time index read by MotorVehicleRegistry (see VehicleIndexProcessor)
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+@interface VehicleType {
+	String value();
+}
+
+@VehicleType("motorcycle")
 class MotorCycle implements MotorVehicle {
 
 	@Override
@@ -48,6 +86,7 @@ class MotorCycle implements MotorVehicle {
 	}
 }
 
+@VehicleType("car")
 class Car implements MotorVehicle {
 
 	@Override
@@ -84,6 +123,387 @@ class CarFactory extends MotorVehicleFactory{
 	
 }
 
+//Type keyed alternative to writing a MotorVehicleFactory subclass per vehicle. Constructors are bound once
+//into LambdaMetafactory generated Suppliers, so creating a vehicle costs the same as calling new. The
+//registry is filled from the index that VehicleIndexProcessor writes at compile time, no classpath scanning.
+class MotorVehicleRegistry {
+	static final String INDEX_RESOURCE = "META-INF/motor-vehicle.index";
+	private static final MethodType SUPPLIER_TYPE = MethodType.methodType(Supplier.class);
+	private static final MethodType GET_TYPE = MethodType.methodType(Object.class);
+	private final Map<String, Supplier<MotorVehicle>> suppliers = new ConcurrentHashMap<>();
+
+	//Registry with every vehicle listed in the compile time index; empty when the processor did not run
+	public static MotorVehicleRegistry fromIndex() {
+		return fromIndex(MotorVehicleRegistry.class.getClassLoader());
+	}
+
+	public static MotorVehicleRegistry fromIndex(ClassLoader loader) {
+		MotorVehicleRegistry registry = new MotorVehicleRegistry();
+		try {
+			Enumeration<URL> indexes = loader.getResources(INDEX_RESOURCE);
+			while (indexes.hasMoreElements()) {
+				try (BufferedReader reader = new BufferedReader(
+						new InputStreamReader(indexes.nextElement().openStream(), StandardCharsets.UTF_8))) {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						int separator = line.indexOf('=');
+						if (separator > 0) {
+							registry.register(line.substring(0, separator),
+									Class.forName(line.substring(separator + 1), false, loader).asSubclass(MotorVehicle.class));
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot read " + INDEX_RESOURCE, e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Stale " + INDEX_RESOURCE, e);
+		}
+		return registry;
+	}
+
+	public void register(String type, Class<? extends MotorVehicle> vehicleClass) {
+		suppliers.put(type, bindConstructor(vehicleClass));
+	}
+
+	public Set<String> types() {
+		return Collections.unmodifiableSet(suppliers.keySet());
+	}
+
+	public Supplier<MotorVehicle> supplier(String type) {
+		Supplier<MotorVehicle> supplier = suppliers.get(type);
+		if (supplier == null) {
+			throw new IllegalArgumentException("No vehicle registered for type " + type);
+		}
+		return supplier;
+	}
+
+	//Same contract as MotorVehicleFactory.create()
+	public MotorVehicle create(String type) {
+		MotorVehicle vehicle = supplier(type).get();
+		vehicle.build();
+		return vehicle;
+	}
+
+	//Adapts one registered type to the MotorVehicleFactory API, e.g. to wrap it in PooledMotorVehicleFactory
+	public MotorVehicleFactory factory(String type) {
+		Supplier<MotorVehicle> supplier = supplier(type);
+		return new MotorVehicleFactory() {
+			@Override
+			protected MotorVehicle createMotorVehicle() {
+				return supplier.get();
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Supplier<MotorVehicle> bindConstructor(Class<? extends MotorVehicle> vehicleClass) {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(vehicleClass, MethodHandles.lookup());
+			MethodHandle constructor = lookup.findConstructor(vehicleClass, MethodType.methodType(void.class));
+			CallSite site = LambdaMetafactory.metafactory(lookup, "get", SUPPLIER_TYPE, GET_TYPE, constructor,
+					MethodType.methodType(vehicleClass));
+			return (Supplier<MotorVehicle>) site.getTarget().invoke();
+		} catch (Throwable e) {
+			throw new IllegalArgumentException("Cannot bind no-arg constructor of " + vehicleClass.getName(), e);
+		}
+	}
+}
+
+//Compares the registry with the subclass factories: startup cost and creation throughput.
+//Run with the index built (see VehicleIndexProcessor): java com.creational.pattern.VehicleRegistryBenchmark
+class VehicleRegistryBenchmark {
+	private static final int ITERATIONS = 50_000_000;
+
+	//Creates through createMotorVehicle() so build() does not print on every iteration
+	static class CountingFactory extends CarFactory {
+		MotorVehicle newVehicle() {
+			return createMotorVehicle();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long start = System.nanoTime();
+		MotorVehicleRegistry registry = MotorVehicleRegistry.fromIndex();
+		long indexNanos = System.nanoTime() - start;
+		if (registry.types().isEmpty()) {
+			System.out.println("No " + MotorVehicleRegistry.INDEX_RESOURCE + " on the classpath, registering manually");
+			start = System.nanoTime();
+			registry.register("car", Car.class);
+			registry.register("motorcycle", MotorCycle.class);
+			indexNanos = System.nanoTime() - start;
+		}
+		start = System.nanoTime();
+		CountingFactory subclassFactory = new CountingFactory();
+		long subclassNanos = System.nanoTime() - start;
+		System.out.printf("startup: registry %.2f ms for %s, subclass factory %.3f ms%n", indexNanos / 1e6,
+				registry.types(), subclassNanos / 1e6);
+
+		Supplier<MotorVehicle> supplier = registry.supplier("car");
+		java.lang.reflect.Constructor<Car> reflective = Car.class.getDeclaredConstructor();
+		//Keeps the vehicles reachable so the allocation cannot be optimised away
+		MotorVehicle[] sink = new MotorVehicle[1024];
+		for (int round = 0; round < 5; round++) {
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				sink[i & 1023] = subclassFactory.newVehicle();
+			}
+			long subclass = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				sink[i & 1023] = supplier.get();
+			}
+			long lambda = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS / 10; i++) {
+				sink[i & 1023] = reflective.newInstance();
+			}
+			long reflection = (System.nanoTime() - start) * 10;
+			System.out.printf("round %d: subclass %.2f ns/op, registry %.2f ns/op, reflection %.2f ns/op%n", round,
+					(double) subclass / ITERATIONS, (double) lambda / ITERATIONS, (double) reflection / ITERATIONS);
+		}
+	}
+}
+
+//Pooled factory mode: vehicles handed back through release() are reset and reused, so a built vehicle
+//does not go through createMotorVehicle() and build() again. Each thread keeps a small private cache and
+//spills into a shared lock-free stack of at most sharedCapacity vehicles; anything beyond that is left to the
+//garbage collector. The pool therefore holds up to sharedCapacity + 16 idle vehicles per live thread; the cache
+//of a thread that ends is collected with it. Idle vehicles, wherever they are parked, are also tracked by
+//identity so a vehicle can be idle in the pool at most once.
+class PooledMotorVehicleFactory extends MotorVehicleFactory {
+	private static final int THREAD_CACHE_SIZE = 16;
+	private static final int IDLE_STRIPES = 64;
+	private final MotorVehicleFactory factory;
+	private final Consumer<? super MotorVehicle> resetHook;
+	private final int sharedCapacity;
+	private final int threadCacheSize;
+	private final ThreadLocal<ArrayDeque<MotorVehicle>> threadCache;
+	private final AtomicReference<Node> overflow = new AtomicReference<>();
+	private final AtomicInteger overflowSize = new AtomicInteger();
+	private final IdleStripe[] idle = new IdleStripe[IDLE_STRIPES];
+
+	//One lock stripe of the identity set of idle vehicles
+	private static final class IdleStripe {
+		final Set<MotorVehicle> vehicles = Collections.newSetFromMap(new IdentityHashMap<>());
+	}
+
+	private static final class Node {
+		final MotorVehicle vehicle;
+		Node next;
+		Node(MotorVehicle vehicle) {
+			this.vehicle = vehicle;
+		}
+	}
+
+	public PooledMotorVehicleFactory(MotorVehicleFactory factory, int sharedCapacity) {
+		this(factory, sharedCapacity, vehicle -> {});
+	}
+
+	public PooledMotorVehicleFactory(MotorVehicleFactory factory, int sharedCapacity,
+			Consumer<? super MotorVehicle> resetHook) {
+		if (sharedCapacity < 0) {
+			throw new IllegalArgumentException("sharedCapacity must not be negative: " + sharedCapacity);
+		}
+		this.factory = Objects.requireNonNull(factory, "factory");
+		this.resetHook = Objects.requireNonNull(resetHook, "resetHook");
+		this.sharedCapacity = sharedCapacity;
+		this.threadCacheSize = Math.min(THREAD_CACHE_SIZE, sharedCapacity);
+		this.threadCache = ThreadLocal.withInitial(() -> new ArrayDeque<>(threadCacheSize));
+		for (int i = 0; i < idle.length; i++) {
+			idle[i] = new IdleStripe();
+		}
+	}
+
+	@Override
+	public MotorVehicle create() {
+		MotorVehicle vehicle = threadCache.get().pollFirst();
+		if (vehicle == null) {
+			vehicle = popOverflow();
+		}
+		if (vehicle == null) {
+			return super.create();
+		}
+		markInUse(vehicle);
+		return vehicle;
+	}
+
+	@Override
+	protected MotorVehicle createMotorVehicle() {
+		return factory.createMotorVehicle();
+	}
+
+	//Hands a vehicle obtained from create() back to the pool. The caller must not use it afterwards. Releasing a
+	//vehicle that is still idle in the pool, from any thread and whether it sits in a thread cache or in the shared
+	//stack, is rejected, so one instance is never handed out twice.
+	public void release(MotorVehicle vehicle) {
+		Objects.requireNonNull(vehicle, "vehicle");
+		if (!markIdle(vehicle)) {
+			throw new IllegalStateException("Vehicle released twice");
+		}
+		resetHook.accept(vehicle);
+		ArrayDeque<MotorVehicle> cache = threadCache.get();
+		if (cache.size() < threadCacheSize) {
+			cache.addFirst(vehicle);
+		} else if (!pushOverflow(vehicle)) {
+			markInUse(vehicle);
+		}
+	}
+
+	//Limit of the shared stack, the per thread caches come on top of it
+	public int getSharedCapacity() {
+		return sharedCapacity;
+	}
+
+	//Vehicles parked in the shared stack, the per thread caches are not counted
+	public int getSharedSize() {
+		return overflowSize.get();
+	}
+
+	private boolean markIdle(MotorVehicle vehicle) {
+		IdleStripe stripe = idle[System.identityHashCode(vehicle) & (IDLE_STRIPES - 1)];
+		synchronized (stripe) {
+			return stripe.vehicles.add(vehicle);
+		}
+	}
+
+	private void markInUse(MotorVehicle vehicle) {
+		IdleStripe stripe = idle[System.identityHashCode(vehicle) & (IDLE_STRIPES - 1)];
+		synchronized (stripe) {
+			stripe.vehicles.remove(vehicle);
+		}
+	}
+
+	//Returns false when the shared stack is full and the vehicle is left to the garbage collector
+	private boolean pushOverflow(MotorVehicle vehicle) {
+		int size;
+		do {
+			size = overflowSize.get();
+			if (size >= sharedCapacity) {
+				return false;
+			}
+		} while (!overflowSize.compareAndSet(size, size + 1));
+		Node node = new Node(vehicle);
+		Node head;
+		do {
+			head = overflow.get();
+			node.next = head;
+		} while (!overflow.compareAndSet(head, node));
+		return true;
+	}
+
+	private MotorVehicle popOverflow() {
+		Node head;
+		do {
+			head = overflow.get();
+			if (head == null) {
+				return null;
+			}
+		} while (!overflow.compareAndSet(head, head.next));
+		overflowSize.decrementAndGet();
+		return head.vehicle;
+	}
+}
+
+//Compares allocation rate and GC time of a high churn create/discard workload with and without pooling.
+//Run with: java com.creational.pattern.VehiclePoolBenchmark
+class VehiclePoolBenchmark {
+	private static final int ITERATIONS = 2_000_000;
+
+	//Vehicle with a sizeable buffer that build() has to fill
+	static class HeavyVehicle implements MotorVehicle {
+		private final long[] parts = new long[512];
+
+		@Override
+		public void build() {
+			for (int i = 0; i < parts.length; i++) {
+				parts[i] = i * 31L;
+			}
+		}
+	}
+
+	static class HeavyVehicleFactory extends MotorVehicleFactory {
+		@Override
+		protected MotorVehicle createMotorVehicle() {
+			return new HeavyVehicle();
+		}
+	}
+
+	public static void main(String[] args) {
+		for (int round = 0; round < 3; round++) {
+			run("new", new HeavyVehicleFactory(), null);
+			PooledMotorVehicleFactory pooled = new PooledMotorVehicleFactory(new HeavyVehicleFactory(), 1024);
+			run("pooled", pooled, pooled);
+		}
+		PooledMotorVehicleFactory pool = new PooledMotorVehicleFactory(new HeavyVehicleFactory(), 8);
+		MotorVehicle vehicle = pool.create();
+		pool.release(vehicle);
+		try {
+			pool.release(vehicle);
+			throw new AssertionError("double release accepted");
+		} catch (IllegalStateException expected) {
+			System.out.println("double release rejected: OK");
+		}
+		//Vehicle 17 no longer fits in the thread cache and spills into the shared stack
+		pool = new PooledMotorVehicleFactory(new HeavyVehicleFactory(), 64);
+		MotorVehicle[] vehicles = new MotorVehicle[17];
+		for (int i = 0; i < vehicles.length; i++) {
+			vehicles[i] = pool.create();
+		}
+		for (MotorVehicle released : vehicles) {
+			pool.release(released);
+		}
+		try {
+			pool.release(vehicles[16]);
+			throw new AssertionError("double release from the shared stack accepted");
+		} catch (IllegalStateException expected) {
+			System.out.println("double release from the shared stack rejected: OK");
+		}
+		Set<MotorVehicle> handedOut = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (int i = 0; i < vehicles.length + 1; i++) {
+			if (!handedOut.add(pool.create())) {
+				throw new AssertionError("vehicle handed out twice");
+			}
+		}
+		System.out.println("no vehicle handed out twice: OK");
+	}
+
+	static void run(String name, MotorVehicleFactory factory, PooledMotorVehicleFactory pool) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long gcCount = gcCount();
+		long gcMillis = gcMillis();
+		long allocated = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			MotorVehicle vehicle = factory.create();
+			if (pool != null) {
+				pool.release(vehicle);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+		System.out.printf("%-7s %7.1f ms, %8.1f MB/s allocated, %3d GCs, %4d ms GC time%n", name, elapsed / 1e6,
+				allocated / 1e6 / (elapsed / 1e9), gcCount() - gcCount, gcMillis() - gcMillis);
+	}
+
+	static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += gc.getCollectionCount();
+		}
+		return count;
+	}
+
+	static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += gc.getCollectionTime();
+		}
+		return millis;
+	}
+}
+
 public class FactoryPatternClient {
 	public static void main(String[] args) {
 		MotorVehicleFactory factory  = new CarFactory();
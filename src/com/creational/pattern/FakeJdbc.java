@@ -0,0 +1,188 @@
+package com.creational.pattern;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLTransientException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+//In memory stand in for a JDBC driver, for the JDBC benchmarks and SingletonPatternClient.checkEvents().
+//Statements and commits cost simulated time and every failEvery-th executeBatch throws a transient error.
+//Queries return resultRows rows of (employee_id BIGINT, salary DECIMAL(12,2), first_name VARCHAR) derived from
+//the bound parameters.
+class FakeJdbc {
+	final long statementNanos;
+	final long commitNanos;
+	final int failEvery;
+	volatile long resultRows = 1;
+	final AtomicLong rowsCommitted = new AtomicLong();
+	final AtomicLong queriesExecuted = new AtomicLong();
+	final AtomicInteger openResources = new AtomicInteger();
+	private final AtomicInteger batches = new AtomicInteger();
+
+	FakeJdbc(long statementNanos, long commitNanos, int failEvery) {
+		this.statementNanos = statementNanos;
+		this.commitNanos = commitNanos;
+		this.failEvery = failEvery;
+	}
+
+	Connection connection() {
+		openResources.incrementAndGet();
+		AtomicInteger pending = new AtomicInteger();
+		boolean[] autoCommit = { true };
+		InvocationHandler handler = (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "prepareStatement":
+				return statement(pending, autoCommit);
+			case "setAutoCommit":
+				autoCommit[0] = (Boolean) args[0];
+				return null;
+			case "getAutoCommit":
+				return autoCommit[0];
+			case "commit":
+				LockSupport.parkNanos(commitNanos);
+				rowsCommitted.addAndGet(pending.getAndSet(0));
+				return null;
+			case "rollback":
+				pending.set(0);
+				return null;
+			case "isClosed":
+				return false;
+			case "close":
+				openResources.decrementAndGet();
+				return null;
+			default:
+				return defaultValue(method.getReturnType());
+			}
+		};
+		return (Connection) Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(), new Class<?>[] { Connection.class },
+				handler);
+	}
+
+	private PreparedStatement statement(AtomicInteger pending, boolean[] autoCommit) {
+		int[] batched = { 0 };
+		int[] seed = { 0 };
+		InvocationHandler handler = (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "setObject":
+				seed[0] = 31 * seed[0] + Objects.hashCode(args[1]);
+				return null;
+			case "executeQuery":
+				LockSupport.parkNanos(statementNanos);
+				queriesExecuted.incrementAndGet();
+				openResources.incrementAndGet();
+				return resultSet(seed[0], resultRows, openResources);
+			case "addBatch":
+				batched[0]++;
+				return null;
+			case "executeBatch":
+				if (failEvery > 0 && batches.incrementAndGet() % failEvery == 0) {
+					batched[0] = 0;
+					throw new SQLTransientException("simulated lock timeout");
+				}
+				LockSupport.parkNanos(statementNanos);
+				int[] counts = new int[batched[0]];
+				Arrays.fill(counts, 1);
+				applied(pending, autoCommit, batched[0]);
+				batched[0] = 0;
+				return counts;
+			case "executeUpdate":
+				LockSupport.parkNanos(statementNanos);
+				applied(pending, autoCommit, 1);
+				return 1;
+			default:
+				return defaultValue(method.getReturnType());
+			}
+		};
+		return (PreparedStatement) Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, handler);
+	}
+
+	private static final String[] COLUMNS = { "employee_id", "salary", "first_name" };
+	private static final int[] COLUMN_TYPES = { Types.BIGINT, Types.DECIMAL, Types.VARCHAR };
+	private static final int[] COLUMN_PRECISIONS = { 19, 12, 0 };
+	private static final int[] COLUMN_SCALES = { 0, 2, 0 };
+
+	static ResultSet resultSet(int seed, long rows, AtomicInteger openResources) {
+		ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(),
+				new Class<?>[] { ResultSetMetaData.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getColumnCount":
+						return COLUMNS.length;
+					case "getColumnLabel":
+					case "getColumnName":
+						return COLUMNS[(Integer) args[0] - 1];
+					case "getColumnType":
+						return COLUMN_TYPES[(Integer) args[0] - 1];
+					case "getPrecision":
+						return COLUMN_PRECISIONS[(Integer) args[0] - 1];
+					case "getScale":
+						return COLUMN_SCALES[(Integer) args[0] - 1];
+					default:
+						return defaultValue(method.getReturnType());
+					}
+				});
+		long[] row = { 0 };
+		InvocationHandler handler = (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "next":
+				return ++row[0] <= rows;
+			case "close":
+				openResources.decrementAndGet();
+				return null;
+			case "getMetaData":
+				return metaData;
+			case "getLong":
+				return seed + row[0];
+			case "getDouble":
+				return (seed + row[0]) * 1.5;
+			case "getString":
+				return "name" + (seed + row[0]);
+			case "getObject":
+				switch ((Integer) args[0]) {
+				case 1:
+					return seed + row[0];
+				case 2:
+					return BigDecimal.valueOf((seed + row[0]) * 150, 2);
+				default:
+					return "name" + (seed + row[0]);
+				}
+			default:
+				return defaultValue(method.getReturnType());
+			}
+		};
+		return (ResultSet) Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+				handler);
+	}
+
+	private void applied(AtomicInteger pending, boolean[] autoCommit, int rows) {
+		if (autoCommit[0]) {
+			LockSupport.parkNanos(commitNanos);
+			rowsCommitted.addAndGet(rows);
+		} else {
+			pending.addAndGet(rows);
+		}
+	}
+
+	static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,80 @@
+package com.creational.pattern;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Rows per second of one commit per row against the batched pipeline, on the fake driver.
+//Run with: java com.creational.pattern.JdbcWriteBenchmark
+class JdbcWriteBenchmark {
+	private static final String INSERT = "insert into employees(employee_id, first_name) values (?, ?)";
+
+	public static void main(String[] args) throws Exception {
+		//100us per statement round trip, 1ms per commit (log flush)
+		FakeJdbc perRowDb = new FakeJdbc(100_000, 1_000_000, 0);
+		int perRowCount = 2_000;
+		long start = System.nanoTime();
+		try (Connection con = perRowDb.connection()) {
+			for (int i = 0; i < perRowCount; i++) {
+				try (PreparedStatement statement = con.prepareStatement(INSERT)) {
+					statement.setObject(1, i);
+					statement.setObject(2, "name" + i);
+					statement.executeUpdate();
+				}
+			}
+		}
+		double perRowRate = perRowCount / ((System.nanoTime() - start) / 1e9);
+
+		FakeJdbc batchedDb = new FakeJdbc(100_000, 1_000_000, 7);
+		JDBC jdbc = JDBC.getInstance();
+		jdbc.setConnectionSource(batchedDb::connection);
+		JdbcWritePipeline pipeline = jdbc.writePipeline(INSERT);
+		int batchedCount = 200_000;
+		List<CompletableFuture<Void>> futures = new ArrayList<>(batchedCount);
+		start = System.nanoTime();
+		for (int i = 0; i < batchedCount; i++) {
+			futures.add(pipeline.submit(i, "name" + i));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+		double batchedRate = batchedCount / ((System.nanoTime() - start) / 1e9);
+		jdbc.closeWritePipelines();
+
+		System.out.printf("per-row commit: %,.0f rows/s (%d rows)%n", perRowRate, perRowDb.rowsCommitted.get());
+		System.out.printf("pipeline:       %,.0f rows/s (%d rows committed in %d batches, %d transient retries)%n",
+				batchedRate, batchedDb.rowsCommitted.get(), pipeline.getBatchesWritten(), pipeline.getRetries());
+		if (batchedDb.rowsCommitted.get() != batchedCount) {
+			throw new AssertionError("lost rows: " + batchedDb.rowsCommitted.get());
+		}
+		checkFailures(batchedDb);
+	}
+
+	//A source that throws fails only its batch, and closing a shared pipeline does not break later callers
+	static void checkFailures(FakeJdbc db) throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		JDBC jdbc = JDBC.getInstance();
+		jdbc.setConnectionSource(() -> {
+			if (calls.getAndIncrement() == 0) {
+				throw new IllegalStateException("pool exhausted");
+			}
+			return db.connection();
+		});
+		try (JdbcWritePipeline pipeline = jdbc.writePipeline(INSERT)) {
+			try {
+				pipeline.submit(-1, "lost").join();
+				throw new AssertionError("row written without a connection");
+			} catch (CompletionException expected) {
+				// the batch failed with the source
+			}
+			pipeline.submit(-2, "after failure").get(5, TimeUnit.SECONDS);
+		}
+		JdbcWritePipeline next = jdbc.writePipeline(INSERT);
+		next.submit(-3, "after close").get(5, TimeUnit.SECONDS);
+		jdbc.closeWritePipelines();
+		System.out.println("failure checks: OK");
+	}
+}
@@ -0,0 +1,20 @@
+package com.creational.pattern;
+
+/*
+  JDK Flight Recorder events for the creational patterns.
+  The event types JdbcConnectionLease, JdbcQuery and JdbcBatchWrite are declared next to the JDBC singleton in
+  SingletonPatternClient. They are disabled by default (see com.common.pattern.PatternEventRecorder).
+  Enable them in a .jfc file or on a Recording, e.g.
+  	recording.enable("com.creational.pattern.JdbcQuery").withThreshold(Duration.ofMillis(1));
+  
+  Running this class records a short fake JDBC session and checks the expected events and fields.
+ */
+public class PatternEvents {
+	static final String LEASE = "com.creational.pattern.JdbcConnectionLease";
+	static final String QUERY = "com.creational.pattern.JdbcQuery";
+	static final String BATCH_WRITE = "com.creational.pattern.JdbcBatchWrite";
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("Recorded " + SingletonPatternClient.checkEvents() + ": OK");
+	}
+}
@@ -0,0 +1,89 @@
+package com.creational.pattern;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+//Hit ratio and latency of the query cache under a Zipf distributed query mix, on the fake driver.
+//Run with: java com.creational.pattern.QueryCacheBenchmark
+class QueryCacheBenchmark {
+	private static final String SELECT = "select employee_id, salary, first_name from employees where department_id = ?";
+	private static final int DISTINCT_QUERIES = 5_000;
+	private static final int QUERIES_PER_THREAD = 20_000;
+	private static final int THREADS = 4;
+
+	public static void main(String[] args) throws Exception {
+		//200us per query round trip, 20 rows per result
+		FakeJdbc db = new FakeJdbc(200_000, 0, 0);
+		db.resultRows = 20;
+		JDBC jdbc = JDBC.getInstance();
+		jdbc.setConnectionSource(db::connection);
+
+		double[] cumulative = zipf(DISTINCT_QUERIES, 1.0);
+		long uncached = run(cumulative, department -> {
+			try (Connection con = jdbc.openConnection(); PreparedStatement statement = con.prepareStatement(SELECT)) {
+				statement.setObject(1, department);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					return QueryResult.copyOf(resultSet);
+				}
+			}
+		});
+		QueryCache cache = jdbc.getQueryCache();
+		Set<String> tags = Set.of("employees");
+		long cached = run(cumulative, department -> cache.query(SELECT, tags, department));
+		int total = THREADS * QUERIES_PER_THREAD;
+		System.out.printf("uncached: %.1f us/query%n", uncached / 1e3 / total * THREADS);
+		System.out.printf("cached:   %.1f us/query, hit ratio %.3f, %d entries, %d loads hit the database%n",
+				cached / 1e3 / total * THREADS, cache.getHitRatio(), cache.size(), db.queriesExecuted.get() - total);
+		cache.invalidate("employees");
+		System.out.println("after invalidate(\"employees\"): " + cache.size() + " entries");
+	}
+
+	interface Query {
+		QueryResult run(int department) throws SQLException;
+	}
+
+	static long run(double[] cumulative, Query query) throws InterruptedException {
+		List<Thread> threads = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int t = 0; t < THREADS; t++) {
+			long seed = t;
+			Thread thread = new Thread(() -> {
+				SplittableRandom random = new SplittableRandom(seed);
+				try {
+					for (int i = 0; i < QUERIES_PER_THREAD; i++) {
+						int index = Arrays.binarySearch(cumulative, random.nextDouble());
+						query.run(index < 0 ? -index - 1 : index);
+					}
+				} catch (SQLException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return System.nanoTime() - start;
+	}
+
+	static double[] zipf(int n, double exponent) {
+		double[] cumulative = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += 1 / Math.pow(i + 1, exponent);
+			cumulative[i] = sum;
+		}
+		for (int i = 0; i < n; i++) {
+			cumulative[i] /= sum;
+		}
+		return cumulative;
+	}
+}
@@ -1,8 +1,46 @@
 package com.creational.pattern;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.common.pattern.PatternEventRecorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
 
 /*
  	Singleton Pattern:
@@ -61,10 +99,66 @@ import java.sql.SQLException;
 
  * */
 
+//Where the JDBC singleton gets its connections from
+@FunctionalInterface
+interface ConnectionSource {
+	public Connection getConnection() throws SQLException;
+}
+
+//Flight recorder events of the JDBC singleton, see PatternEvents
+@Name("com.creational.pattern.JdbcConnectionLease")
+@Label("JDBC Connection Lease")
+@Description("Connection taken from the JDBC singleton and held until it is returned (closed)")
+@Category({ "Design Patterns", "Singleton" })
+@Enabled(false)
+@StackTrace(false)
+class JdbcConnectionLeaseEvent extends Event {
+	@Label("Holder")
+	String holder;
+}
+
+@Name("com.creational.pattern.JdbcQuery")
+@Label("JDBC Query")
+@Category({ "Design Patterns", "Singleton" })
+@Enabled(false)
+@StackTrace(false)
+class JdbcQueryEvent extends Event {
+	@Label("SQL")
+	String sql;
+
+	@Label("Source")
+	String source;
+
+	@Label("Rows")
+	long rows;
+}
+
+@Name("com.creational.pattern.JdbcBatchWrite")
+@Label("JDBC Batch Write")
+@Category({ "Design Patterns", "Singleton" })
+@Enabled(false)
+@StackTrace(false)
+class JdbcBatchWriteEvent extends Event {
+	@Label("SQL")
+	String sql;
+
+	@Label("Rows")
+	int rows;
+
+	@Label("Attempts")
+	int attempts;
+
+	@Label("Success")
+	boolean success;
+}
+
 //Double Checked Locking based Java implementation of
 // singleton design pattern
 class JDBC {
 	private static volatile JDBC obj = null;
+	private volatile ConnectionSource connectionSource = JDBC::openDefaultConnection;
+	private final Map<String, JdbcWritePipeline> writePipelines = new ConcurrentHashMap<>();
+	private final QueryCache queryCache = new QueryCache(this::openConnection);
 
 	private JDBC() {}
 
@@ -88,9 +182,966 @@ class JDBC {
          return con;  
            
      }  
+
+	private static Connection openDefaultConnection() throws SQLException {
+		try {
+			return getConnection();
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("MySQL driver not on the classpath", e);
+		}
+	}
+
+	//Replaces the default MySQL connection, e.g. with a pool or an embedded database
+	public void setConnectionSource(ConnectionSource connectionSource) {
+		this.connectionSource = connectionSource;
+	}
+
+	//Connection from the current source, used by the pipelines owned by this singleton
+	public Connection openConnection() throws SQLException {
+		return connectionSource.getConnection();
+	}
+
+	//Shared asynchronous batched writer for one insert/update statement. A pipeline that was closed, by any of its
+	//users or because its writer stopped, is dropped from the cache, so the next call starts a new one.
+	public JdbcWritePipeline writePipeline(String sql) {
+		for (;;) {
+			JdbcWritePipeline pipeline = writePipelines.computeIfAbsent(sql,
+					key -> new JdbcWritePipeline(this::openConnection, key, JdbcWritePipeline.DEFAULT_BATCH_SIZE,
+							JdbcWritePipeline.DEFAULT_LINGER_MILLIS, JdbcWritePipeline.DEFAULT_QUEUE_CAPACITY,
+							JdbcWritePipeline.DEFAULT_MAX_RETRIES, closed -> writePipelines.remove(key, closed)));
+			if (!pipeline.isClosed()) {
+				return pipeline;
+			}
+			writePipelines.remove(sql, pipeline);
+		}
+	}
+
+	//Cursor based reader for large results, see StreamingResultReader
+	public StreamingResultReader streamQuery(String sql, Object... params) throws SQLException {
+		return StreamingResultReader.open(this::openConnection, sql, StreamingResultReader.DEFAULT_FETCH_SIZE,
+				StreamingResultReader.DEFAULT_CHUNK_SIZE, params);
+	}
+
+	//Read-through cache for reference data queries
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	//Flushes and stops every write pipeline
+	public void closeWritePipelines() {
+		for (JdbcWritePipeline pipeline : writePipelines.values()) {
+			pipeline.close();
+		}
+		writePipelines.clear();
+	}
+}
+
+//Asynchronous writer: callers submit rows into a bounded queue and get a future back, a single writer thread
+//groups them into addBatch/executeBatch calls with one commit per batch. A batch is flushed when it is full
+//or when the first row in it has waited for the linger time. Transient failures are retried with backoff.
+class JdbcWritePipeline implements AutoCloseable {
+	static final int DEFAULT_BATCH_SIZE = 500;
+	static final long DEFAULT_LINGER_MILLIS = 5;
+	static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+	static final int DEFAULT_MAX_RETRIES = 3;
+	private static final long RETRY_BACKOFF_MILLIS = 10;
+
+	private final ConnectionSource connectionSource;
+	private final String sql;
+	private final int batchSize;
+	private final long lingerNanos;
+	private final int maxRetries;
+	private final BlockingQueue<PendingRow> queue;
+	private final Thread writer;
+	private volatile boolean closed;
+	private final Consumer<JdbcWritePipeline> onClosed;
+	private Connection connection;
+	private JdbcConnectionLeaseEvent lease;
+	private final AtomicLong rowsWritten = new AtomicLong();
+	private final AtomicLong batchesWritten = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+
+	private static final class PendingRow {
+		final Object[] params;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		PendingRow(Object[] params) {
+			this.params = params;
+		}
+	}
+
+	public JdbcWritePipeline(ConnectionSource connectionSource, String sql) {
+		this(connectionSource, sql, DEFAULT_BATCH_SIZE, DEFAULT_LINGER_MILLIS, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_RETRIES);
+	}
+
+	public JdbcWritePipeline(ConnectionSource connectionSource, String sql, int batchSize, long lingerMillis,
+			int queueCapacity, int maxRetries) {
+		this(connectionSource, sql, batchSize, lingerMillis, queueCapacity, maxRetries, pipeline -> {});
+	}
+
+	//onClosed runs on the writer thread once the pipeline has stopped for good
+	JdbcWritePipeline(ConnectionSource connectionSource, String sql, int batchSize, long lingerMillis,
+			int queueCapacity, int maxRetries, Consumer<JdbcWritePipeline> onClosed) {
+		if (batchSize <= 0 || queueCapacity <= 0 || lingerMillis < 0 || maxRetries < 0) {
+			throw new IllegalArgumentException("Invalid pipeline settings");
+		}
+		this.connectionSource = connectionSource;
+		this.sql = sql;
+		this.batchSize = batchSize;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		this.maxRetries = maxRetries;
+		this.onClosed = onClosed;
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.writer = new Thread(this::run, "jdbc-write-pipeline");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	//Queues one row of statement parameters. Blocks while the queue is full (back-pressure).
+	public CompletableFuture<Void> submit(Object... params) throws InterruptedException {
+		if (closed) {
+			throw new IllegalStateException("Write pipeline is closed");
+		}
+		PendingRow row = new PendingRow(params.clone());
+		queue.put(row);
+		//The writer may have finished its final drain between the check above and the put
+		if (closed && queue.remove(row)) {
+			row.done.completeExceptionally(new IllegalStateException("Write pipeline is closed"));
+		}
+		return row.done;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public long getRowsWritten() {
+		return rowsWritten.get();
+	}
+
+	public long getBatchesWritten() {
+		return batchesWritten.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	//Stops accepting rows, writes what is queued and waits for the writer to finish
+	public void close() {
+		closed = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		List<PendingRow> batch = new ArrayList<>(batchSize);
+		try {
+			while (!closed || !queue.isEmpty()) {
+				PendingRow first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + lingerNanos;
+				while (batch.size() < batchSize) {
+					queue.drainTo(batch, batchSize - batch.size());
+					long wait = deadline - System.nanoTime();
+					if (batch.size() >= batchSize || wait <= 0) {
+						break;
+					}
+					PendingRow next = queue.poll(wait, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				try {
+					write(batch);
+				} catch (RuntimeException e) {
+					//A failing source, parameter or driver only costs this batch; the connection is not trusted anymore
+					fail(batch, e);
+					closeConnection();
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			fail(batch, e);
+		} catch (Error e) {
+			fail(batch, e);
+			throw e;
+		} finally {
+			//Whatever stopped the writer, no row may be left waiting for it
+			closed = true;
+			List<PendingRow> rest = new ArrayList<>();
+			queue.drainTo(rest);
+			fail(rest, new IllegalStateException("Write pipeline is closed"));
+			closeConnection();
+			onClosed.accept(this);
+		}
+	}
+
+	private void write(List<PendingRow> batch) throws InterruptedException {
+		JdbcBatchWriteEvent event = new JdbcBatchWriteEvent();
+		event.begin();
+		for (int attempt = 0;; attempt++) {
+			try {
+				Connection con = connection();
+				try (PreparedStatement statement = con.prepareStatement(sql)) {
+					for (PendingRow row : batch) {
+						for (int i = 0; i < row.params.length; i++) {
+							statement.setObject(i + 1, row.params[i]);
+						}
+						statement.addBatch();
+					}
+					statement.executeBatch();
+				}
+				con.commit();
+				rowsWritten.addAndGet(batch.size());
+				batchesWritten.incrementAndGet();
+				for (PendingRow row : batch) {
+					row.done.complete(null);
+				}
+				commit(event, batch.size(), attempt + 1, true);
+				return;
+			} catch (SQLException e) {
+				rollback(e);
+				if (attempt >= maxRetries || !isTransient(e)) {
+					fail(batch, e);
+					commit(event, batch.size(), attempt + 1, false);
+					return;
+				}
+				retries.incrementAndGet();
+				TimeUnit.MILLISECONDS.sleep(RETRY_BACKOFF_MILLIS << attempt);
+			} catch (RuntimeException e) {
+				commit(event, batch.size(), attempt + 1, false);
+				throw e;
+			}
+		}
+	}
+
+	private void commit(JdbcBatchWriteEvent event, int rows, int attempts, boolean success) {
+		if (event.shouldCommit()) {
+			event.sql = sql;
+			event.rows = rows;
+			event.attempts = attempts;
+			event.success = success;
+			event.commit();
+		}
+	}
+
+	private static boolean isTransient(SQLException e) {
+		return e instanceof SQLTransientException || e instanceof SQLRecoverableException;
+	}
+
+	private Connection connection() throws SQLException {
+		if (connection == null) {
+			lease = new JdbcConnectionLeaseEvent();
+			lease.begin();
+			connection = connectionSource.getConnection();
+			connection.setAutoCommit(false);
+		}
+		return connection;
+	}
+
+	private void rollback(SQLException cause) {
+		if (connection == null) {
+			return;
+		}
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			cause.addSuppressed(e);
+		}
+		//A recoverable failure means this connection is gone, reconnect on the next attempt
+		if (cause instanceof SQLRecoverableException) {
+			closeConnection();
+		}
+	}
+
+	private void closeConnection() {
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				// nothing left to do with a broken connection
+			}
+			connection = null;
+			if (lease.shouldCommit()) {
+				lease.holder = "write-pipeline";
+				lease.commit();
+			}
+		}
+	}
+
+	private static void fail(List<PendingRow> rows, Throwable cause) {
+		for (PendingRow row : rows) {
+			row.done.completeExceptionally(cause);
+		}
+	}
+}
+
+//Immutable copy of a small result set: column labels are shared and the values are stored row major in one array
+final class QueryResult {
+	private final String[] columns;
+	private final Object[] values;
+	private final int rowCount;
+
+	private QueryResult(String[] columns, Object[] values, int rowCount) {
+		this.columns = columns;
+		this.values = values;
+		this.rowCount = rowCount;
+	}
+
+	//Reads the remaining rows of the result set, which stays owned by the caller
+	static QueryResult copyOf(ResultSet resultSet) throws SQLException {
+		ResultSetMetaData metaData = resultSet.getMetaData();
+		String[] columns = new String[metaData.getColumnCount()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = metaData.getColumnLabel(i + 1);
+		}
+		Object[] values = new Object[columns.length * 4];
+		int size = 0;
+		while (resultSet.next()) {
+			if (size + columns.length > values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			for (int i = 0; i < columns.length; i++) {
+				values[size++] = resultSet.getObject(i + 1);
+			}
+		}
+		return new QueryResult(columns, Arrays.copyOf(values, size), columns.length == 0 ? 0 : size / columns.length);
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	public String getColumnLabel(int column) {
+		return columns[column];
+	}
+
+	//row and column are zero based
+	public Object getObject(int row, int column) {
+		if (row < 0 || row >= rowCount || column < 0 || column >= columns.length) {
+			throw new IndexOutOfBoundsException("row " + row + ", column " + column);
+		}
+		return values[row * columns.length + column];
+	}
+}
+
+//Read-through cache for reference data queries, keyed by SQL and bound parameters. Entries expire after a TTL,
+//the least recently used entry is evicted when the cache is full, concurrent misses on the same key share a
+//single load, and entries are invalidated by the table tags they were registered with.
+class QueryCache {
+	static final long DEFAULT_TTL_MILLIS = 60_000;
+	static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+	private final ConnectionSource connectionSource;
+	private final long ttlNanos;
+	private final int maxEntries;
+	private final Map<QueryKey, CachedResult> entries;
+	private final Map<QueryKey, CompletableFuture<QueryResult>> loading = new ConcurrentHashMap<>();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private static final class QueryKey {
+		final String sql;
+		final Object[] params;
+		final int hash;
+		QueryKey(String sql, Object[] params) {
+			this.sql = sql;
+			this.params = params;
+			this.hash = 31 * sql.hashCode() + Arrays.hashCode(params);
+		}
+		public boolean equals(Object other) {
+			if (!(other instanceof QueryKey)) {
+				return false;
+			}
+			QueryKey key = (QueryKey) other;
+			return hash == key.hash && sql.equals(key.sql) && Arrays.equals(params, key.params);
+		}
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private static final class CachedResult {
+		final QueryResult result;
+		final Set<String> tables;
+		final long expiresAt;
+		CachedResult(QueryResult result, Set<String> tables, long expiresAt) {
+			this.result = result;
+			this.tables = tables;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public QueryCache(ConnectionSource connectionSource) {
+		this(connectionSource, DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+	}
+
+	public QueryCache(ConnectionSource connectionSource, long ttlMillis, int maxEntries) {
+		if (ttlMillis <= 0 || maxEntries <= 0) {
+			throw new IllegalArgumentException("ttlMillis and maxEntries must be positive");
+		}
+		this.connectionSource = connectionSource;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<QueryKey, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<QueryKey, CachedResult> eldest) {
+				return size() > QueryCache.this.maxEntries;
+			}
+		};
+	}
+
+	//tables are the tags used by invalidate(), normally the tables the query reads
+	public QueryResult query(String sql, Set<String> tables, Object... params) throws SQLException {
+		QueryKey key = new QueryKey(sql, params.clone());
+		CachedResult cached;
+		synchronized (entries) {
+			cached = entries.get(key);
+			if (cached != null && cached.expiresAt - System.nanoTime() <= 0) {
+				entries.remove(key);
+				cached = null;
+			}
+		}
+		if (cached != null) {
+			hits.increment();
+			return cached.result;
+		}
+		misses.increment();
+
+		CompletableFuture<QueryResult> load = new CompletableFuture<>();
+		CompletableFuture<QueryResult> inFlight = loading.putIfAbsent(key, load);
+		if (inFlight != null) {
+			return await(inFlight);
+		}
+		try {
+			long epoch = invalidations.get();
+			QueryResult result = load(key);
+			synchronized (entries) {
+				//Do not cache rows read while an invalidation was running
+				if (epoch == invalidations.get()) {
+					entries.put(key, new CachedResult(result, Set.copyOf(tables), System.nanoTime() + ttlNanos));
+				}
+			}
+			load.complete(result);
+			return result;
+		} catch (SQLException | RuntimeException e) {
+			load.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key);
+		}
+	}
+
+	//Drops every entry tagged with the table
+	public void invalidate(String table) {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			entries.values().removeIf(cached -> cached.tables.contains(table));
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public double getHitRatio() {
+		long hit = hits.sum();
+		long total = hit + misses.sum();
+		return total == 0 ? 0 : (double) hit / total;
+	}
+
+	private QueryResult load(QueryKey key) throws SQLException {
+		JdbcConnectionLeaseEvent lease = new JdbcConnectionLeaseEvent();
+		lease.begin();
+		try (Connection con = connectionSource.getConnection();
+				PreparedStatement statement = con.prepareStatement(key.sql)) {
+			for (int i = 0; i < key.params.length; i++) {
+				statement.setObject(i + 1, key.params[i]);
+			}
+			JdbcQueryEvent query = new JdbcQueryEvent();
+			query.begin();
+			try (ResultSet resultSet = statement.executeQuery()) {
+				QueryResult result = QueryResult.copyOf(resultSet);
+				if (query.shouldCommit()) {
+					query.sql = key.sql;
+					query.source = "query-cache";
+					query.rows = result.getRowCount();
+					query.commit();
+				}
+				return result;
+			}
+		} finally {
+			if (lease.shouldCommit()) {
+				lease.holder = "query-cache";
+				lease.commit();
+			}
+		}
+	}
+
+	private static QueryResult await(CompletableFuture<QueryResult> inFlight) throws SQLException {
+		try {
+			return inFlight.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
+
+//One chunk of rows read by StreamingResultReader. Integer columns land in long[] and floating point columns in
+//double[] buffers without boxing. DECIMAL/NUMERIC columns of up to 15 digits (e.g. salary DECIMAL(8,2)) are kept
+//exactly as unscaled long[] values with the column's scale; wider decimals and other columns are kept as objects.
+//The buffers are reused for the next chunk, so a chunk is only valid inside the callback or stream step that
+//received it.
+final class RowChunk {
+	enum ColumnKind {
+		LONG, DOUBLE, DECIMAL, OBJECT
+	}
+
+	//Up to 15 digits a double read from the driver rounds back to the exact unscaled value
+	private static final int MAX_DECIMAL_PRECISION = 15;
+	private static final double[] POWERS_OF_TEN = new double[MAX_DECIMAL_PRECISION + 1];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private final String[] labels;
+	private final ColumnKind[] kinds;
+	private final int[] scales;
+	private final long[][] longs;
+	private final double[][] doubles;
+	private final Object[][] objects;
+	private final boolean[][] nulls;
+	private int size;
+
+	RowChunk(ResultSetMetaData metaData, int capacity) throws SQLException {
+		int columns = metaData.getColumnCount();
+		labels = new String[columns];
+		kinds = new ColumnKind[columns];
+		scales = new int[columns];
+		longs = new long[columns][];
+		doubles = new double[columns][];
+		objects = new Object[columns][];
+		nulls = new boolean[columns][];
+		for (int i = 0; i < columns; i++) {
+			labels[i] = metaData.getColumnLabel(i + 1);
+			kinds[i] = kindOf(metaData, i + 1);
+			switch (kinds[i]) {
+			case LONG:
+				longs[i] = new long[capacity];
+				nulls[i] = new boolean[capacity];
+				break;
+			case DECIMAL:
+				scales[i] = metaData.getScale(i + 1);
+				longs[i] = new long[capacity];
+				nulls[i] = new boolean[capacity];
+				break;
+			case DOUBLE:
+				doubles[i] = new double[capacity];
+				nulls[i] = new boolean[capacity];
+				break;
+			default:
+				objects[i] = new Object[capacity];
+			}
+		}
+	}
+
+	private static ColumnKind kindOf(ResultSetMetaData metaData, int column) throws SQLException {
+		switch (metaData.getColumnType(column)) {
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+			return ColumnKind.LONG;
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return ColumnKind.DOUBLE;
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			//Drivers report precision 0 when it is unknown
+			int precision = metaData.getPrecision(column);
+			int scale = metaData.getScale(column);
+			return precision > 0 && precision <= MAX_DECIMAL_PRECISION && scale >= 0 && scale <= precision
+					? ColumnKind.DECIMAL
+					: ColumnKind.OBJECT;
+		default:
+			return ColumnKind.OBJECT;
+		}
+	}
+
+	//Reads up to the chunk capacity from the current cursor position, returns false at the end of the result
+	boolean fill(ResultSet resultSet) throws SQLException {
+		int capacity = longs.length == 0 ? 0 : capacity();
+		size = 0;
+		while (size < capacity && resultSet.next()) {
+			for (int i = 0; i < kinds.length; i++) {
+				switch (kinds[i]) {
+				case LONG:
+					longs[i][size] = resultSet.getLong(i + 1);
+					nulls[i][size] = resultSet.wasNull();
+					break;
+				case DOUBLE:
+					doubles[i][size] = resultSet.getDouble(i + 1);
+					nulls[i][size] = resultSet.wasNull();
+					break;
+				case DECIMAL:
+					longs[i][size] = Math.round(resultSet.getDouble(i + 1) * POWERS_OF_TEN[scales[i]]);
+					nulls[i][size] = resultSet.wasNull();
+					break;
+				default:
+					objects[i][size] = resultSet.getObject(i + 1);
+				}
+			}
+			size++;
+		}
+		if (size < capacity) {
+			//Do not keep references from the previous chunk alive
+			for (Object[] column : objects) {
+				if (column != null) {
+					Arrays.fill(column, size, column.length, null);
+				}
+			}
+		}
+		return size > 0;
+	}
+
+	private int capacity() {
+		ColumnKind kind = kinds[0];
+		return longs[0] != null ? longs[0].length : kind == ColumnKind.DOUBLE ? doubles[0].length : objects[0].length;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getColumnCount() {
+		return labels.length;
+	}
+
+	public String getColumnLabel(int column) {
+		return labels[column];
+	}
+
+	public ColumnKind getColumnKind(int column) {
+		return kinds[column];
+	}
+
+	//Raw buffer of a LONG column, only the first size() entries belong to this chunk
+	public long[] longColumn(int column) {
+		return require(longs[column], column, ColumnKind.LONG);
+	}
+
+	//Raw buffer of a DOUBLE column, only the first size() entries belong to this chunk
+	public double[] doubleColumn(int column) {
+		return require(doubles[column], column, ColumnKind.DOUBLE);
+	}
+
+	//Unscaled values of a DECIMAL column, the value is unscaled / 10^getScale(column); only the first size()
+	//entries belong to this chunk
+	public long[] decimalColumn(int column) {
+		return require(longs[column], column, ColumnKind.DECIMAL);
+	}
+
+	public int getScale(int column) {
+		return scales[column];
+	}
+
+	public long getLong(int row, int column) {
+		return longColumn(column)[checkRow(row)];
+	}
+
+	//Also reads DECIMAL columns, rounded to the nearest double
+	public double getDouble(int row, int column) {
+		if (kinds[column] == ColumnKind.DECIMAL) {
+			return decimalColumn(column)[checkRow(row)] / POWERS_OF_TEN[scales[column]];
+		}
+		return doubleColumn(column)[checkRow(row)];
+	}
+
+	public Object getObject(int row, int column) {
+		checkRow(row);
+		switch (kinds[column]) {
+		case LONG:
+			return nulls[column][row] ? null : longs[column][row];
+		case DOUBLE:
+			return nulls[column][row] ? null : doubles[column][row];
+		case DECIMAL:
+			return nulls[column][row] ? null : BigDecimal.valueOf(longs[column][row], scales[column]);
+		default:
+			return objects[column][row];
+		}
+	}
+
+	public boolean isNull(int row, int column) {
+		checkRow(row);
+		return kinds[column] == ColumnKind.OBJECT ? objects[column][row] == null : nulls[column][row];
+	}
+
+	private int checkRow(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("row " + row + ", chunk size " + size);
+		}
+		return row;
+	}
+
+	private <T> T require(T buffer, int column, ColumnKind kind) {
+		if (kinds[column] != kind) {
+			throw new IllegalArgumentException("Column " + labels[column] + " is " + kinds[column] + ", not " + kind);
+		}
+		return buffer;
+	}
+}
+
+//Cursor based reader for large results: rows are fetched fetchSize at a time by the driver and handed out in
+//reusable RowChunks, so memory stays flat whatever the result size. Connection, statement and result set
+//are closed by close(), by the end of forEachChunk(), or by closing the stream from chunks().
+class StreamingResultReader implements AutoCloseable {
+	static final int DEFAULT_FETCH_SIZE = 1_000;
+	static final int DEFAULT_CHUNK_SIZE = 4_096;
+
+	@FunctionalInterface
+	interface ChunkConsumer {
+		public void accept(RowChunk chunk) throws SQLException;
+	}
+
+	private final Connection connection;
+	private final PreparedStatement statement;
+	private final ResultSet resultSet;
+	private final RowChunk chunk;
+	private final String sql;
+	private final JdbcConnectionLeaseEvent lease;
+	private final JdbcQueryEvent query;
+	private long rowsRead;
+	private boolean closed;
+
+	private StreamingResultReader(Connection connection, PreparedStatement statement, ResultSet resultSet, int chunkSize,
+			String sql, JdbcConnectionLeaseEvent lease, JdbcQueryEvent query) throws SQLException {
+		this.sql = sql;
+		this.lease = lease;
+		this.query = query;
+		this.connection = connection;
+		this.statement = statement;
+		this.resultSet = resultSet;
+		this.chunk = new RowChunk(resultSet.getMetaData(), chunkSize);
+	}
+
+	//Most drivers (PostgreSQL, MySQL with useCursorFetch=true) only honour the fetch size outside auto-commit
+	public static StreamingResultReader open(ConnectionSource connectionSource, String sql, int fetchSize, int chunkSize,
+			Object... params) throws SQLException {
+		if (fetchSize <= 0 || chunkSize <= 0) {
+			throw new IllegalArgumentException("fetchSize and chunkSize must be positive");
+		}
+		JdbcConnectionLeaseEvent lease = new JdbcConnectionLeaseEvent();
+		lease.begin();
+		Connection connection = connectionSource.getConnection();
+		PreparedStatement statement = null;
+		try {
+			connection.setAutoCommit(false);
+			statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(fetchSize);
+			for (int i = 0; i < params.length; i++) {
+				statement.setObject(i + 1, params[i]);
+			}
+			JdbcQueryEvent query = new JdbcQueryEvent();
+			query.begin();
+			ResultSet resultSet = statement.executeQuery();
+			try {
+				return new StreamingResultReader(connection, statement, resultSet, chunkSize, sql, lease, query);
+			} catch (SQLException | RuntimeException e) {
+				closeQuietly(resultSet, e);
+				throw e;
+			}
+		} catch (SQLException | RuntimeException e) {
+			closeQuietly(statement, e);
+			closeQuietly(connection, e);
+			throw e;
+		}
+	}
+
+	//Pushes every chunk to the consumer and closes the reader afterwards
+	public long forEachChunk(ChunkConsumer consumer) throws SQLException {
+		long rows = 0;
+		try {
+			while (!closed && chunk.fill(resultSet)) {
+				rows += chunk.size();
+				rowsRead += chunk.size();
+				consumer.accept(chunk);
+			}
+		} finally {
+			close();
+		}
+		return rows;
+	}
+
+	//Lazy sequential stream of chunks; use it in try-with-resources so the reader is closed early too
+	public Stream<RowChunk> chunks() {
+		Spliterator<RowChunk> spliterator = new Spliterators.AbstractSpliterator<RowChunk>(Long.MAX_VALUE,
+				Spliterator.ORDERED | Spliterator.NONNULL) {
+			public boolean tryAdvance(Consumer<? super RowChunk> action) {
+				try {
+					if (closed || !chunk.fill(resultSet)) {
+						close();
+						return false;
+					}
+					rowsRead += chunk.size();
+				} catch (SQLException e) {
+					throw new UncheckedSQLException(e);
+				}
+				action.accept(chunk);
+				return true;
+			}
+		};
+		return StreamSupport.stream(spliterator, false).onClose(this::closeUnchecked);
+	}
+
+	public void close() throws SQLException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (query.shouldCommit()) {
+			query.sql = sql;
+			query.source = "stream";
+			query.rows = rowsRead;
+			query.commit();
+		}
+		SQLException failure = null;
+		try {
+			resultSet.close();
+		} catch (SQLException e) {
+			failure = e;
+		}
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			failure = chain(failure, e);
+		}
+		try {
+			connection.rollback();
+			connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			failure = chain(failure, e);
+		}
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			failure = chain(failure, e);
+		}
+		if (lease.shouldCommit()) {
+			lease.holder = "stream";
+			lease.commit();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void closeUnchecked() {
+		try {
+			close();
+		} catch (SQLException e) {
+			throw new UncheckedSQLException(e);
+		}
+	}
+
+	private static SQLException chain(SQLException first, SQLException next) {
+		if (first == null) {
+			return next;
+		}
+		first.addSuppressed(next);
+		return first;
+	}
+
+	private static void closeQuietly(AutoCloseable resource, Exception cause) {
+		if (resource != null) {
+			try {
+				resource.close();
+			} catch (Exception e) {
+				cause.addSuppressed(e);
+			}
+		}
+	}
+}
+
+//SQLException thrown from inside a Stream pipeline
+class UncheckedSQLException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	UncheckedSQLException(SQLException cause) {
+		super(cause);
+	}
+
+	public SQLException getCause() {
+		return (SQLException) super.getCause();
+	}
 }
 
 public class SingletonPatternClient {
+	//Records a short fake JDBC session and checks the events, run by PatternEvents
+	static String checkEvents() throws Exception {
+		FakeJdbc db = new FakeJdbc(0, 0, 0);
+		db.resultRows = 3;
+		JDBC jdbc = JDBC.getInstance();
+		jdbc.setConnectionSource(db::connection);
+		String select = "select employee_id, salary, first_name from employees where department_id = ?";
+		List<RecordedEvent> events = PatternEventRecorder.record(() -> {
+			jdbc.getQueryCache().query(select, Set.of("employees"), 10);
+			jdbc.getQueryCache().query(select, Set.of("employees"), 10);
+			jdbc.streamQuery(select, 20).forEachChunk(chunk -> {});
+			jdbc.writePipeline("insert into employees(employee_id) values (?)").submit(1).join();
+			jdbc.closeWritePipelines();
+		}, PatternEvents.LEASE, PatternEvents.QUERY, PatternEvents.BATCH_WRITE);
+
+		List<RecordedEvent> queries = PatternEventRecorder.named(events, PatternEvents.QUERY);
+		PatternEventRecorder.check(queries.size() == 2, "one query for the cache miss and one for the stream, got " + queries.size());
+		PatternEventRecorder.check(queries.stream().allMatch(e -> select.equals(e.getString("sql")) && e.getLong("rows") == 3),
+				"query events carry the SQL and row count");
+		PatternEventRecorder.check(queries.stream().map(e -> e.getString("source")).collect(Collectors.toSet())
+				.equals(Set.of("query-cache", "stream")), "query sources");
+		List<RecordedEvent> leases = PatternEventRecorder.named(events, PatternEvents.LEASE);
+		PatternEventRecorder.check(leases.size() == 3, "three connection leases, got " + leases.size());
+		List<RecordedEvent> batches = PatternEventRecorder.named(events, PatternEvents.BATCH_WRITE);
+		PatternEventRecorder.check(batches.size() == 1 && batches.get(0).getInt("rows") == 1 && batches.get(0).getBoolean("success"),
+				"one successful single row batch");
+		return queries.size() + " queries, " + leases.size() + " leases, " + batches.size() + " batch writes";
+	}
+
 
 	public static void main(String[] args) {
 		JDBC jdbcObj = JDBC.getInstance();
@@ -0,0 +1,91 @@
+package com.creational.pattern;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+//Peak heap and throughput of the streaming reader against materialising List<Map<String,Object>>.
+//Run with: java com.creational.pattern.StreamingReaderBenchmark [rows] [materialisedRows]
+class StreamingReaderBenchmark {
+	private static final String SELECT = "select employee_id, salary, first_name from employees";
+
+	public static void main(String[] args) throws Exception {
+		long rows = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+		//The naive reader does not fit 10^7 rows in a default heap, it is measured on a smaller result
+		long materialisedRows = args.length > 1 ? Long.parseLong(args[1]) : 1_000_000L;
+		FakeJdbc db = new FakeJdbc(0, 0, 0);
+		JDBC jdbc = JDBC.getInstance();
+		jdbc.setConnectionSource(db::connection);
+
+		db.resultRows = materialisedRows;
+		resetPeaks();
+		long start = System.nanoTime();
+		List<Map<String, Object>> materialised = new ArrayList<>();
+		try (Connection con = jdbc.openConnection();
+				PreparedStatement statement = con.prepareStatement(SELECT);
+				ResultSet resultSet = statement.executeQuery()) {
+			ResultSetMetaData metaData = resultSet.getMetaData();
+			while (resultSet.next()) {
+				Map<String, Object> row = new HashMap<>();
+				for (int i = 1; i <= metaData.getColumnCount(); i++) {
+					row.put(metaData.getColumnLabel(i), resultSet.getObject(i));
+				}
+				materialised.add(row);
+			}
+		}
+		report("List<Map>", materialised.size(), System.nanoTime() - start);
+		materialised = null;
+		System.gc();
+
+		db.resultRows = rows;
+		resetPeaks();
+		start = System.nanoTime();
+		//salary is DECIMAL(12,2), summed exactly in cents
+		long[] salaryCents = { 0 };
+		long read = jdbc.streamQuery(SELECT).forEachChunk(chunk -> {
+			long[] salary = chunk.decimalColumn(1);
+			for (int i = 0; i < chunk.size(); i++) {
+				salaryCents[0] += salary[i];
+			}
+		});
+		report("streaming", read, System.nanoTime() - start);
+		if (salaryCents[0] != 150 * (rows * (rows + 1) / 2)) {
+			throw new AssertionError("salary decimals not read exactly: " + salaryCents[0]);
+		}
+
+		try (Stream<RowChunk> chunks = jdbc.streamQuery(SELECT).chunks()) {
+			System.out.println("stream api, first chunk of " + chunks.findFirst().map(RowChunk::size).orElse(0) + " rows");
+		}
+		System.out.println("open driver resources after close: " + db.openResources.get() + " (salary sum " + BigDecimal.valueOf(salaryCents[0], 2) + ")");
+	}
+
+	static void resetPeaks() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	static void report(String name, long rows, long nanos) {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		System.out.printf("%-10s %,12d rows, %,10.0f rows/s, peak heap %,6d MB%n", name, rows, rows / (nanos / 1e9),
+				peak >> 20);
+	}
+}
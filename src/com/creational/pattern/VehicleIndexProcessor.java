@@ -0,0 +1,110 @@
+package com.creational.pattern;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+
+/*
+  Annotation processor that builds the MotorVehicleRegistry index at compile time.
+  Every class annotated with @VehicleType is checked (concrete, implements MotorVehicle, no-arg constructor)
+  and written as "type=binary.class.Name" into META-INF/motor-vehicle.index, so the registry never has to
+  scan the classpath at startup.
+  
+  The processor has to be compiled before the classes it processes:
+  	javac -proc:none -d bin src/com/creational/pattern/VehicleIndexProcessor.java
+  	javac -processorpath bin -processor com.creational.pattern.VehicleIndexProcessor -d bin <sources>
+ */
+@SupportedAnnotationTypes(VehicleIndexProcessor.VEHICLE_TYPE)
+public class VehicleIndexProcessor extends AbstractProcessor {
+	static final String VEHICLE_TYPE = "com.creational.pattern.VehicleType";
+	static final String MOTOR_VEHICLE = "com.creational.pattern.MotorVehicle";
+	static final String INDEX_RESOURCE = "META-INF/motor-vehicle.index";
+	private final Map<String, String> index = new TreeMap<>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement annotation = processingEnv.getElementUtils().getTypeElement(VEHICLE_TYPE);
+		if (annotation != null) {
+			for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+				collect((TypeElement) element);
+			}
+		}
+		if (roundEnv.processingOver() && !index.isEmpty()) {
+			writeIndex();
+		}
+		return true;
+	}
+
+	private void collect(TypeElement vehicle) {
+		TypeMirror motorVehicle = processingEnv.getElementUtils().getTypeElement(MOTOR_VEHICLE).asType();
+		if (vehicle.getKind() != ElementKind.CLASS || vehicle.getModifiers().contains(Modifier.ABSTRACT)
+				|| !processingEnv.getTypeUtils().isAssignable(vehicle.asType(), motorVehicle)) {
+			error(vehicle, "@VehicleType must be on a concrete class implementing " + MOTOR_VEHICLE);
+			return;
+		}
+		if (!hasNoArgConstructor(vehicle)) {
+			error(vehicle, "@VehicleType class needs a non-private no-arg constructor");
+			return;
+		}
+		String type = typeName(vehicle);
+		String className = processingEnv.getElementUtils().getBinaryName(vehicle).toString();
+		String previous = index.put(type, className);
+		if (previous != null && !previous.equals(className)) {
+			error(vehicle, "Vehicle type \"" + type + "\" is already registered by " + previous);
+		}
+	}
+
+	private static boolean hasNoArgConstructor(TypeElement vehicle) {
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(vehicle.getEnclosedElements())) {
+			if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String typeName(TypeElement vehicle) {
+		return vehicle.getAnnotationMirrors().stream()
+				.filter(mirror -> mirror.getAnnotationType().toString().equals(VEHICLE_TYPE))
+				.flatMap(mirror -> mirror.getElementValues().values().stream())
+				.map(value -> value.getValue().toString())
+				.findFirst()
+				.orElse(vehicle.getSimpleName().toString());
+	}
+
+	private void writeIndex() {
+		try (Writer writer = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_RESOURCE)
+				.openWriter()) {
+			for (Map.Entry<String, String> entry : index.entrySet()) {
+				writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+			}
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write " + INDEX_RESOURCE + ": " + e);
+		}
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}
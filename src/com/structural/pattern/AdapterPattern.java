@@ -1,5 +1,18 @@
 package com.structural.pattern;
 
+import java.util.List;
+
+import com.common.pattern.PatternEventRecorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
+
 /*
   Adapter:
   Acts as a connector between two incompatible interfaces
@@ -71,6 +84,18 @@ interface DataVisulizer{
 	public void displayGraph(String jsonData); 
 }
 
+//Flight recorder event of the adapter, see PatternEvents
+@Name("com.structural.pattern.AdapterConversion")
+@Label("Adapter Conversion")
+@Category({ "Design Patterns", "Adapter" })
+@Enabled(false)
+@StackTrace(false)
+class AdapterConversionEvent extends Event {
+	@Label("Input Size")
+	@DataAmount
+	long inputSize;
+}
+
 class LibraryAdapter implements DataVisulizer{ 
 	AnalyticLibrary analyticLibrary; //adaptee
 	public LibraryAdapter(AnalyticLibrary analyticLibrary){
@@ -83,12 +108,28 @@ class LibraryAdapter implements DataVisulizer{
 	}
 	
 	private CustomLibraryObject getCustomLibraryObject(String jsonData) {
+		AdapterConversionEvent event = new AdapterConversionEvent();
+		event.begin();
 		//convert json data to library object
-		return new CustomLibraryObject(jsonData);
+		CustomLibraryObject customLibraryObject = new CustomLibraryObject(jsonData);
+		if (event.shouldCommit()) {
+			event.inputSize = jsonData.length();
+			event.commit();
+		}
+		return customLibraryObject;
 	}
 }
 
 public class AdapterPattern {
+	//Records one conversion and checks the event, run by PatternEvents
+	static int checkEvents() throws Exception {
+		List<RecordedEvent> events = PatternEventRecorder.record(
+				() -> new LibraryAdapter(new AnalyticLibrary()).displayGraph("{\"points\":[1,2,3]}"),
+				PatternEvents.ADAPTER_CONVERSION);
+		PatternEventRecorder.check(events.size() == 1 && events.get(0).getLong("inputSize") == 18, "one adapter conversion");
+		return events.size();
+	}
+
 	public static void main(String[] args) {
 		String jsonData = "{}";
 		AnalyticLibrary library = new AnalyticLibrary();
@@ -1,5 +1,17 @@
 package com.structural.pattern;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+
 /*
   Bridge Pattern :
   Bridge design pattern  that uses OOP principles to decouple an abstraction from its implementation so that the two can vary independently.
@@ -32,10 +44,27 @@ interface Engine{
 }
 
 //Separating abstraction from implementation(we separate the engine from vehicle)
+//The engine can be swapped at runtime while other threads keep calling reFill(). Writes use release and
+//reads use acquire semantics, so a reader never sees an engine whose constructor has not finished.
 abstract class Vehical{
-	Engine engine;
+	private static final VarHandle ENGINE;
+	static {
+		try {
+			ENGINE = MethodHandles.lookup().findVarHandle(Vehical.class, "engine", Engine.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	private Engine engine;
 	public Vehical(Engine engine) {
-		this.engine = engine;
+		this.engine = Objects.requireNonNull(engine, "engine");
+	}
+	public Engine getEngine() {
+		return (Engine) ENGINE.getAcquire(this);
+	}
+	//Returns the engine that was replaced
+	public Engine swapEngine(Engine engine) {
+		return (Engine) ENGINE.getAndSetRelease(this, Objects.requireNonNull(engine, "engine"));
 	}
 	abstract public void reFill();
 }
@@ -45,7 +74,7 @@ class Car extends Vehical{
 		super(engine);
 	}
 	public void reFill() {
-		System.out.println("Car "+engine.reFill());
+		System.out.println("Car "+getEngine().reFill());
 	}
 }
 
@@ -54,7 +83,7 @@ class Bike extends Vehical{
 		super(engine);
 	}
 	public void reFill() {
-		System.out.println("Bike "+engine.reFill());
+		System.out.println("Bike "+getEngine().reFill());
 	}
 }
 
@@ -70,6 +99,270 @@ class PetrolEngine implements Engine{
 	}
 }
 
+//Engine shared by a group of vehicles. Swapping the delegate switches the whole group at once, with the
+//same release/acquire guarantees as Vehical.swapEngine().
+class SharedEngine implements Engine {
+	private static final VarHandle DELEGATE;
+	static {
+		try {
+			DELEGATE = MethodHandles.lookup().findVarHandle(SharedEngine.class, "delegate", Engine.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	private Engine delegate;
+
+	public SharedEngine(Engine delegate) {
+		this.delegate = Objects.requireNonNull(delegate, "delegate");
+	}
+
+	public Engine getDelegate() {
+		return (Engine) DELEGATE.getAcquire(this);
+	}
+
+	//Returns the engine that was replaced
+	public Engine swap(Engine delegate) {
+		return (Engine) DELEGATE.getAndSetRelease(this, Objects.requireNonNull(delegate, "delegate"));
+	}
+
+	public String reFill() {
+		return getDelegate().reFill();
+	}
+}
+
+//Outcome of one fleet refill run
+class FleetRefillReport {
+	private final long vehicles;
+	private final int batches;
+	private final long elapsedNanos;
+
+	public FleetRefillReport(long vehicles, int batches, long elapsedNanos) {
+		this.vehicles = vehicles;
+		this.batches = batches;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public long getVehicles() {
+		return vehicles;
+	}
+
+	public int getBatches() {
+		return batches;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public double getThroughput() {
+		return elapsedNanos == 0 ? 0 : vehicles * 1e9 / elapsedNanos;
+	}
+
+	public String toString() {
+		return String.format("%d vehicles in %d batches, %.1f ms, %.0f vehicles/s", vehicles, batches,
+				elapsedNanos / 1e6, getThroughput());
+	}
+}
+
+//Refills a whole fleet through Vehical.reFill() in fleet order, one batch after another on the calling thread,
+//and reports progress after each batch. Grouping by engine does not give each group its own call site, so it
+//only added a copy of the fleet, and splitting the batches across a pool cost more than it saved.
+class FleetRefillScheduler {
+	private static final int DEFAULT_BATCH_SIZE = 4096;
+	private final int batchSize;
+
+	public FleetRefillScheduler() {
+		this(DEFAULT_BATCH_SIZE);
+	}
+
+	public FleetRefillScheduler(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	public FleetRefillReport refill(List<? extends Vehical> fleet) {
+		return refill(fleet, done -> {});
+	}
+
+	//progress receives the number of vehicles refilled so far, once per finished batch
+	public FleetRefillReport refill(List<? extends Vehical> fleet, LongConsumer progress) {
+		if (!(fleet instanceof RandomAccess)) {
+			fleet = new ArrayList<>(fleet);
+		}
+		long start = System.nanoTime();
+		int size = fleet.size();
+		int batches = 0;
+		for (int from = 0; from < size; from += batchSize) {
+			int to = Math.min(size, from + batchSize);
+			for (int i = from; i < to; i++) {
+				fleet.get(i).reFill();
+			}
+			batches++;
+			progress.accept(to);
+		}
+		return new FleetRefillReport(size, batches, System.nanoTime() - start);
+	}
+}
+
+//Compares the scheduler against iterating a mixed petrol/electric fleet one vehicle at a time, which shows the
+//cost of the progress reporting.
+//Run with: java com.structural.pattern.FleetRefillBenchmark [fleetSize]
+class FleetRefillBenchmark {
+	//Vehicles that refill without printing or allocating, so garbage from one phase is not collected in the next
+	static class QuietCar extends Car {
+		String status;
+		QuietCar(Engine engine) {
+			super(engine);
+		}
+		public void reFill() {
+			status = getEngine().reFill();
+		}
+	}
+
+	static class QuietBike extends Bike {
+		String status;
+		QuietBike(Engine engine) {
+			super(engine);
+		}
+		public void reFill() {
+			status = getEngine().reFill();
+		}
+	}
+
+	public static void main(String[] args) {
+		int fleetSize = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+		List<Vehical> fleet = new ArrayList<>(fleetSize);
+		Engine petrol = new PetrolEngine();
+		Engine electric = new ElectricEngine();
+		Random random = new Random(42);
+		for (int i = 0; i < fleetSize; i++) {
+			Engine engine = random.nextBoolean() ? petrol : electric;
+			fleet.add(i % 3 == 0 ? new QuietBike(engine) : new QuietCar(engine));
+		}
+
+		FleetRefillScheduler scheduler = new FleetRefillScheduler();
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			long refilled = 0;
+			for (Vehical vehical : fleet) {
+				vehical.reFill();
+				refilled++;
+			}
+			FleetRefillReport naive = new FleetRefillReport(refilled, 1, System.nanoTime() - start);
+			FleetRefillReport scheduled = scheduler.refill(fleet);
+			System.out.println("round " + round + " naive:     " + naive);
+			System.out.println("round " + round + " scheduler: " + scheduled);
+		}
+		scheduler.refill(fleet, done -> {
+			if (done % 100_000 < 4096) {
+				System.out.println("progress: " + done + "/" + fleetSize);
+			}
+		});
+	}
+}
+
+//Stress checks engine swaps under concurrent reFill() and compares the acquire read against a final field.
+//Run with: java com.structural.pattern.EngineSwapBenchmark
+class EngineSwapBenchmark {
+	//Engine whose state is only valid once its constructor finished
+	static class CheckedEngine implements Engine {
+		private int charge;
+		CheckedEngine(int charge) {
+			this.charge = charge;
+		}
+		public String reFill() {
+			if (charge <= 0) {
+				throw new IllegalStateException("observed half initialized engine");
+			}
+			return "charged " + charge;
+		}
+	}
+
+	//Baseline: the engine reference can never change
+	static class FinalEngineVehical {
+		final Engine engine;
+		FinalEngineVehical(Engine engine) {
+			this.engine = engine;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		stress();
+		steadyState();
+	}
+
+	static void stress() throws Exception {
+		Car car = new Car(new CheckedEngine(1));
+		SharedEngine groupEngine = new SharedEngine(new CheckedEngine(1));
+		Bike bike = new Bike(groupEngine);
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicLong reads = new AtomicLong();
+		List<Thread> readers = new ArrayList<>();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		for (int i = 0; i < 4; i++) {
+			Thread reader = new Thread(() -> {
+				long count = 0;
+				while (running.get()) {
+					car.getEngine().reFill();
+					bike.getEngine().reFill();
+					count++;
+				}
+				reads.addAndGet(count);
+			});
+			reader.setUncaughtExceptionHandler((thread, e) -> failure.compareAndSet(null, e));
+			readers.add(reader);
+			reader.start();
+		}
+		int swaps = 0;
+		long deadline = System.nanoTime() + 2_000_000_000L;
+		while (System.nanoTime() < deadline) {
+			car.swapEngine(new CheckedEngine(swaps + 1));
+			groupEngine.swap(new CheckedEngine(swaps + 1));
+			swaps++;
+		}
+		running.set(false);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError("swap published a broken engine", failure.get());
+		}
+		System.out.println("stress: " + swaps + " swaps, " + reads.get() + " concurrent reads, no torn engine observed");
+	}
+
+	static void steadyState() {
+		Engine engine = new PetrolEngine();
+		Vehical[] swappable = new Vehical[1024];
+		FinalEngineVehical[] fixed = new FinalEngineVehical[1024];
+		for (int i = 0; i < swappable.length; i++) {
+			swappable[i] = new Car(engine);
+			fixed[i] = new FinalEngineVehical(engine);
+		}
+		long sink = 0;
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			for (int n = 0; n < 20_000; n++) {
+				for (FinalEngineVehical vehical : fixed) {
+					sink += vehical.engine.reFill().length();
+				}
+			}
+			long finalNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int n = 0; n < 20_000; n++) {
+				for (Vehical vehical : swappable) {
+					sink += vehical.getEngine().reFill().length();
+				}
+			}
+			long acquireNanos = System.nanoTime() - start;
+			System.out.printf("round %d final field %.2f ns/call, acquire read %.2f ns/call%n", round,
+					finalNanos / (20_000.0 * fixed.length), acquireNanos / (20_000.0 * swappable.length));
+		}
+		System.out.println("(checksum " + sink + ")");
+	}
+}
+
 public class BridgePattern {
 	public static void main(String[] args) {
 		//Engine engine = new ElectricEngine();
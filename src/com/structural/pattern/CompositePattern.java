@@ -1,6 +1,41 @@
 package com.structural.pattern;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.common.pattern.PatternEventRecorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
 
 /*
   Composite:
@@ -28,38 +63,1272 @@ import java.util.List;
 //In below example we composed the object into tree structure(file system)
 interface FileSystem{
 	public double getSize();
+	
+	//Name used in paths, null for anonymous nodes
+	public default String getName() {
+		return null;
+	}
 }
 
 class File implements FileSystem {
+	private final String name;
 	private final double size;
 	public File(double size){
+		this(null, size);
+	}
+	
+	public File(String name, double size) {
+		this.name = FileSystemGlob.checkName(name);
 		this.size = size;
 	}
 	
 	public double getSize() {
 		return size;
 	}
+	
+	public String getName() {
+		return name;
+	}
+}
+
+//Flight recorder event of Folder.getSize(), see PatternEvents
+@Name("com.structural.pattern.CompositeSize")
+@Label("Composite Size")
+@Category({ "Design Patterns", "Composite" })
+@Enabled(false)
+@StackTrace(false)
+class CompositeSizeEvent extends Event {
+	@Label("Nodes Visited")
+	long nodes;
+
+	@Label("Total Size")
+	double size;
 }
 
 class Folder implements FileSystem {
+	private final String name;
 	private double size = 0;
-	private List<FileSystem> childrens =  new ArrayList<FileSystem>();
+	//Anonymous plain files are kept as sizes only; every other child (folders, named files, other FileSystem
+	//types) is kept as an object together with its position among all the children
+	private double[] leafSizes = NO_LEAVES;
+	private int leafCount;
+	private FileSystem[] nodes = NO_NODES;
+	private int[] nodePositions = NO_POSITIONS;
+	private int nodeCount;
+	//Named children for path lookups, created with the first named child
+	private Map<String, FileSystem> childrenByName;
+	private Folder parent;
+	//Total size and number of negative sized nodes of the subtree, recomputed lazily after a change below.
+	//liveNodes counts the nodes below that may change without telling their folder (anything but Folder, File
+	//and PersistentFolder); folders with such nodes below are recomputed on every refresh.
+	private double subtreeSize;
+	private int negativeNodes;
+	private int liveNodes;
+	private boolean aggregatesValid = true;
+	private static final double[] NO_LEAVES = {};
+	private static final FileSystem[] NO_NODES = {};
+	private static final int[] NO_POSITIONS = {};
+	
 	public Folder(double size){
+		this(null, size);
+	}
+	
+	public Folder(String name, double size) {
+		this.name = FileSystemGlob.checkName(name);
 		this.size = size;
+		this.subtreeSize = size;
+		this.negativeNodes = size < 0 ? 1 : 0;
 	}
+	
+	//A folder can only be added to one parent; named children must have unique names within the folder
 	public void addChild(FileSystem file) {
-		childrens.add(file);
+		if (file.getClass() == File.class && file.getName() == null) {
+			if (leafCount == leafSizes.length) {
+				leafSizes = Arrays.copyOf(leafSizes, Math.max(4, leafCount * 2));
+			}
+			leafSizes[leafCount++] = file.getSize();
+			invalidateAggregates();
+			return;
+		}
+		if (file instanceof Folder && ((Folder) file).parent != null) {
+			throw new IllegalStateException("Folder already belongs to another folder");
+		}
+		String childName = file.getName();
+		if (childName != null) {
+			if (childrenByName == null) {
+				childrenByName = new HashMap<>();
+			}
+			if (childrenByName.putIfAbsent(childName, file) != null) {
+				throw new IllegalArgumentException("Folder already contains " + childName);
+			}
+		}
+		if (file instanceof Folder) {
+			((Folder) file).parent = this;
+		}
+		if (nodeCount == nodes.length) {
+			int capacity = Math.max(4, nodeCount * 2);
+			nodes = Arrays.copyOf(nodes, capacity);
+			nodePositions = Arrays.copyOf(nodePositions, capacity);
+		}
+		nodePositions[nodeCount] = nodeCount + leafCount;
+		nodes[nodeCount++] = file;
+		invalidateAggregates();
+	}
+	
+	//Stops at the first ancestor that is already invalid, so building a tree top down stays linear
+	private void invalidateAggregates() {
+		for (Folder folder = this; folder != null && folder.aggregatesValid; folder = folder.parent) {
+			folder.aggregatesValid = false;
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public Folder getParent() {
+		return parent;
+	}
+	
+	//Path from the top most ancestor (excluded) to this folder, so that root.resolve(folder.getPath()) == folder
+	public String getPath() {
+		ArrayDeque<String> names = new ArrayDeque<>();
+		for (Folder folder = this; folder.parent != null; folder = folder.parent) {
+			names.push(folder.name == null ? "?" : folder.name);
+		}
+		return String.join("/", names);
+	}
+	
+	//Named child of this folder, or null
+	public FileSystem getChild(String name) {
+		return childrenByName == null ? null : childrenByName.get(name);
+	}
+	
+	//Follows a '/' separated path of names below this folder, one hash lookup per level; null when not found
+	public FileSystem resolve(String path) {
+		FileSystem node = this;
+		int start = 0;
+		while (start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			if (end > start) {
+				if (!(node instanceof Folder)) {
+					return null;
+				}
+				node = ((Folder) node).getChild(path.substring(start, end));
+				if (node == null) {
+					return null;
+				}
+			}
+			start = end + 1;
+		}
+		return node;
+	}
+	
+	//Named nodes below this folder matching a pattern like "src/*/Test?.java" or "**/*.log"
+	public List<FileSystem> glob(String pattern) {
+		return FileSystemGlob.find(this, pattern);
 	}
 	
+	//Total size, the same value as getSize(). Subtrees of folders, files and persistent folders are cached until
+	//they change; the path to any other kind of node, e.g. a ConcurrentFileSystem, is summed again on every call.
+	public double getSubtreeSize() {
+		refreshAggregates();
+		return subtreeSize;
+	}
+	
+	//The k folders of this subtree (this folder included) with the largest total size, largest first
+	public List<Folder> largestSubtrees(int k) {
+		if (k < 0) {
+			throw new IllegalArgumentException("k must not be negative: " + k);
+		}
+		refreshAggregates();
+		List<Folder> largest = new ArrayList<>(Math.min(k, 1024));
+		if (k == 0) {
+			return largest;
+		}
+		Comparator<Folder> bySize = Comparator.comparingDouble(folder -> folder.subtreeSize);
+		if (negativeNodes == 0) {
+			//Without negative sizes no folder is larger than its parent, so a best first walk from this folder
+			//finds the k largest after opening only k folders
+			PriorityQueue<Folder> frontier = new PriorityQueue<>(bySize.reversed());
+			frontier.add(this);
+			while (largest.size() < k && !frontier.isEmpty()) {
+				Folder folder = frontier.poll();
+				largest.add(folder);
+				for (int i = 0; i < folder.nodeCount; i++) {
+					if (folder.nodes[i] instanceof Folder) {
+						frontier.add((Folder) folder.nodes[i]);
+					}
+				}
+			}
+			return largest;
+		}
+		//Otherwise every folder is visited, keeping the k largest seen so far in a min-heap
+		PriorityQueue<Folder> smallestFirst = new PriorityQueue<>(bySize);
+		ArrayDeque<Folder> pending = new ArrayDeque<>();
+		pending.push(this);
+		while (!pending.isEmpty()) {
+			Folder folder = pending.pop();
+			if (smallestFirst.size() < k) {
+				smallestFirst.add(folder);
+			} else if (folder.subtreeSize > smallestFirst.peek().subtreeSize) {
+				smallestFirst.poll();
+				smallestFirst.add(folder);
+			}
+			for (int i = 0; i < folder.nodeCount; i++) {
+				if (folder.nodes[i] instanceof Folder) {
+					pending.push((Folder) folder.nodes[i]);
+				}
+			}
+		}
+		while (!smallestFirst.isEmpty()) {
+			largest.add(smallestFirst.poll());
+		}
+		Collections.reverse(largest);
+		return largest;
+	}
+	
+	private boolean needsRefresh() {
+		return !aggregatesValid || liveNodes > 0;
+	}
+	
+	//Recomputes the folders that are invalid or have live nodes below, children before parents; the other sub
+	//folders contribute their cached aggregates
+	private void refreshAggregates() {
+		if (!needsRefresh()) {
+			return;
+		}
+		ArrayDeque<Folder> pending = new ArrayDeque<>();
+		ArrayDeque<Folder> parentsFirst = new ArrayDeque<>();
+		pending.push(this);
+		while (!pending.isEmpty()) {
+			Folder folder = pending.pop();
+			parentsFirst.push(folder);
+			for (int i = 0; i < folder.nodeCount; i++) {
+				if (folder.nodes[i] instanceof Folder && ((Folder) folder.nodes[i]).needsRefresh()) {
+					pending.push((Folder) folder.nodes[i]);
+				}
+			}
+		}
+		while (!parentsFirst.isEmpty()) {
+			Folder folder = parentsFirst.pop();
+			double total = folder.size;
+			int negatives = folder.size < 0 ? 1 : 0;
+			int live = 0;
+			for (int i = 0; i < folder.leafCount; i++) {
+				total += folder.leafSizes[i];
+				negatives += folder.leafSizes[i] < 0 ? 1 : 0;
+			}
+			for (int i = 0; i < folder.nodeCount; i++) {
+				FileSystem child = folder.nodes[i];
+				if (child instanceof Folder) {
+					total += ((Folder) child).subtreeSize;
+					negatives += ((Folder) child).negativeNodes;
+					live += ((Folder) child).liveNodes;
+				} else {
+					double childSize = child.getSize();
+					total += childSize;
+					negatives += childSize < 0 ? 1 : 0;
+					live += child instanceof File || child instanceof PersistentFolder ? 0 : 1;
+				}
+			}
+			folder.subtreeSize = total;
+			folder.negativeNodes = negatives;
+			folder.liveNodes = live;
+			folder.aggregatesValid = true;
+		}
+	}
+	
+	//Read only view of all children in insertion order. Anonymous plain files are not retained, so they are
+	//returned as new, equivalent File instances rather than the objects that were added. Tree walks should use
+	//FileSystemTraversal, which does not go through this view.
+	public List<FileSystem> getChildren() {
+		return new AbstractList<FileSystem>() {
+			public FileSystem get(int index) {
+				Objects.checkIndex(index, nodeCount + leafCount);
+				int node = Arrays.binarySearch(nodePositions, 0, nodeCount, index);
+				if (node >= 0) {
+					return nodes[node];
+				}
+				//The objects before this position are not leaves
+				return new File(leafSizes[index - (-node - 1)]);
+			}
+
+			public int size() {
+				return nodeCount + leafCount;
+			}
+		};
+	}
+	
+	//Direct access for FileSystemTraversal and FileSystemGlob: the children kept as objects, each with its
+	//position among all children, and the sizes of the plain files stored in place of File objects
+	int nodeCount() {
+		return nodeCount;
+	}
+	
+	FileSystem node(int index) {
+		return nodes[index];
+	}
+	
+	int nodePosition(int index) {
+		return nodePositions[index];
+	}
+	
+	int leafCount() {
+		return leafCount;
+	}
+	
+	double leafSize(int index) {
+		return leafSizes[index];
+	}
+	
+	//Size of the folder itself, without its children
+	public double getOwnSize() {
+		return size;
+	}
+	
+	//Walks the tree with an explicit stack, so arbitrarily deep folder chains cannot overflow the call stack
 	public double getSize() {
+		CompositeSizeEvent event = new CompositeSizeEvent();
+		event.begin();
 		double size = 0;
-		for (FileSystem fileSystem : childrens) {
-			size += fileSystem.getSize();
+		long nodes = 0;
+		ArrayDeque<Folder> pending = new ArrayDeque<>();
+		pending.push(this);
+		while (!pending.isEmpty()) {
+			Folder folder = pending.pop();
+			nodes += 1 + folder.leafCount;
+			size += folder.size;
+			//Plain files are summed without any dispatch
+			double[] leaves = folder.leafSizes;
+			for (int i = 0; i < folder.leafCount; i++) {
+				size += leaves[i];
+			}
+			for (int i = 0; i < folder.nodeCount; i++) {
+				FileSystem fileSystem = folder.nodes[i];
+				if (fileSystem instanceof Folder) {
+					pending.push((Folder) fileSystem);
+				} else {
+					nodes++;
+					size += fileSystem.getSize();
+				}
+			}
+		}
+		if (event.shouldCommit()) {
+			event.nodes = nodes;
+			event.size = size;
+			event.commit();
+		}
+		return size;
+	}
+}
+
+//Glob lookups over named nodes. Patterns are '/' separated; in a segment '*' matches any run of characters and
+//'?' a single character, and a segment of "**" matches any number of folders. Segments without wildcards are
+//looked up by name instead of scanning the children.
+class FileSystemGlob {
+	static String checkName(String name) {
+		if (name != null && (name.isEmpty() || name.indexOf('/') >= 0)) {
+			throw new IllegalArgumentException("Invalid name: '" + name + "'");
+		}
+		return name;
+	}
+
+	private final String[] segments;
+	private final Set<FileSystem> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final List<FileSystem> matches = new ArrayList<>();
+	//Pending states: a folder and the index of the next segment to match below it. Each state is pushed at most
+	//once, so several "**" segments cannot make the search revisit a folder at the same index.
+	private final ArrayDeque<Folder> folders = new ArrayDeque<>();
+	private final ArrayDeque<Integer> indexes = new ArrayDeque<>();
+	private final Map<Folder, BitSet> pushed = new IdentityHashMap<>();
+
+	private FileSystemGlob(String[] segments) {
+		this.segments = segments;
+	}
+
+	public static List<FileSystem> find(Folder root, String pattern) {
+		String[] segments = Arrays.stream(pattern.split("/")).filter(segment -> !segment.isEmpty())
+				.toArray(String[]::new);
+		FileSystemGlob glob = new FileSystemGlob(segments);
+		if (segments.length > 0) {
+			glob.search(root);
 		}
-		return size + this.size;
+		return glob.matches;
+	}
+
+	private void search(Folder root) {
+		push(root, 0);
+		while (!folders.isEmpty()) {
+			Folder folder = folders.pop();
+			int index = indexes.pop();
+			String segment = segments[index];
+			boolean last = index == segments.length - 1;
+			if (segment.equals("**")) {
+				if (last) {
+					matchAllBelow(folder, index);
+					continue;
+				}
+				push(folder, index + 1);
+				for (int i = 0; i < folder.nodeCount(); i++) {
+					FileSystem child = folder.node(i);
+					if (child instanceof Folder) {
+						push((Folder) child, index);
+					}
+				}
+			} else if (segment.indexOf('*') < 0 && segment.indexOf('?') < 0) {
+				accept(folder.getChild(segment), last, index);
+			} else {
+				//Only children kept as objects can have a name
+				for (int i = 0; i < folder.nodeCount(); i++) {
+					FileSystem child = folder.node(i);
+					if (child.getName() != null && matches(segment, child.getName())) {
+						accept(child, last, index);
+					}
+				}
+			}
+		}
+	}
+
+	//A trailing "**" matches everything named below the folder; stored leaves are anonymous. Folders already
+	//expanded for this segment are skipped together with their subtrees.
+	private void matchAllBelow(Folder top, int index) {
+		//Children are pushed in reverse so that matches come out in pre order
+		ArrayDeque<FileSystem> pending = new ArrayDeque<>();
+		pushChildren(top, pending);
+		while (!pending.isEmpty()) {
+			FileSystem node = pending.pop();
+			if (node.getName() != null && seen.add(node)) {
+				matches.add(node);
+			}
+			if (node instanceof Folder && markPushed((Folder) node, index)) {
+				pushChildren((Folder) node, pending);
+			}
+		}
+	}
+
+	private static void pushChildren(Folder folder, ArrayDeque<FileSystem> pending) {
+		for (int i = folder.nodeCount() - 1; i >= 0; i--) {
+			pending.push(folder.node(i));
+		}
+	}
+
+	private void accept(FileSystem node, boolean last, int index) {
+		if (node == null) {
+			return;
+		}
+		if (last) {
+			if (seen.add(node)) {
+				matches.add(node);
+			}
+		} else if (node instanceof Folder) {
+			push((Folder) node, index + 1);
+		}
+	}
+
+	private void push(Folder folder, int index) {
+		if (markPushed(folder, index)) {
+			folders.push(folder);
+			indexes.push(index);
+		}
+	}
+
+	//False when the folder was already reached with this segment index
+	private boolean markPushed(Folder folder, int index) {
+		BitSet indexesSeen = pushed.computeIfAbsent(folder, key -> new BitSet(segments.length));
+		if (indexesSeen.get(index)) {
+			return false;
+		}
+		indexesSeen.set(index);
+		return true;
+	}
+
+	//Wildcard match of one segment, backtracking only to the last '*'
+	static boolean matches(String segment, String name) {
+		int s = 0, n = 0, star = -1, resume = 0;
+		while (n < name.length()) {
+			if (s < segment.length() && (segment.charAt(s) == '?' || segment.charAt(s) == name.charAt(n))) {
+				s++;
+				n++;
+			} else if (s < segment.length() && segment.charAt(s) == '*') {
+				star = s++;
+				resume = n;
+			} else if (star >= 0) {
+				s = star + 1;
+				n = ++resume;
+			} else {
+				return false;
+			}
+		}
+		while (s < segment.length() && segment.charAt(s) == '*') {
+			s++;
+		}
+		return s == segment.length();
 	}
 }
+
+//Receives the nodes of a traversal. Anonymous plain files are stored in their folder as sizes only and are
+//reported through leaf(), so a walk does not allocate anything per file.
+interface FileSystemVisitor {
+	void node(FileSystem node);
+
+	void leaf(Folder parent, double size);
+}
+
+//Iterative traversals of FileSystem trees. Nothing here recurses, so the depth of the tree is only limited by
+//the heap. Children of a Folder are visited in insertion order. The Consumer variants hand stored leaves over
+//as new File instances; the FileSystemVisitor variants do not allocate per file.
+class FileSystemTraversal {
+	private FileSystemTraversal() {}
+
+	//Walks the children of one folder in insertion order, reading the stored leaf sizes in place
+	static final class ChildCursor {
+		final Folder folder;
+		private int node;
+		private int leaf;
+
+		ChildCursor(Folder folder) {
+			this.folder = folder;
+		}
+
+		boolean hasNext() {
+			return node < folder.nodeCount() || leaf < folder.leafCount();
+		}
+
+		//True when the next child is kept as an object, false when it is a stored leaf size
+		boolean nextIsNode() {
+			return node < folder.nodeCount() && folder.nodePosition(node) == node + leaf;
+		}
+
+		FileSystem nextNode() {
+			return folder.node(node++);
+		}
+
+		double nextLeaf() {
+			return folder.leafSize(leaf++);
+		}
+	}
+
+	//Parent before its children
+	public static void preOrder(FileSystem root, Consumer<? super FileSystem> visitor) {
+		preOrder(root, adapt(visitor));
+	}
+
+	public static void preOrder(FileSystem root, FileSystemVisitor visitor) {
+		visitor.node(root);
+		if (!(root instanceof Folder)) {
+			return;
+		}
+		ArrayDeque<ChildCursor> pending = new ArrayDeque<>();
+		pending.push(new ChildCursor((Folder) root));
+		while (!pending.isEmpty()) {
+			ChildCursor cursor = pending.peek();
+			if (!cursor.hasNext()) {
+				pending.pop();
+			} else if (cursor.nextIsNode()) {
+				FileSystem child = cursor.nextNode();
+				visitor.node(child);
+				if (child instanceof Folder) {
+					pending.push(new ChildCursor((Folder) child));
+				}
+			} else {
+				visitor.leaf(cursor.folder, cursor.nextLeaf());
+			}
+		}
+	}
+
+	//Children before their parent
+	public static void postOrder(FileSystem root, Consumer<? super FileSystem> visitor) {
+		postOrder(root, adapt(visitor));
+	}
+
+	public static void postOrder(FileSystem root, FileSystemVisitor visitor) {
+		if (!(root instanceof Folder)) {
+			visitor.node(root);
+			return;
+		}
+		ArrayDeque<ChildCursor> pending = new ArrayDeque<>();
+		pending.push(new ChildCursor((Folder) root));
+		while (!pending.isEmpty()) {
+			ChildCursor cursor = pending.peek();
+			if (!cursor.hasNext()) {
+				pending.pop();
+				visitor.node(cursor.folder);
+			} else if (cursor.nextIsNode()) {
+				FileSystem child = cursor.nextNode();
+				if (child instanceof Folder) {
+					pending.push(new ChildCursor((Folder) child));
+				} else {
+					visitor.node(child);
+				}
+			} else {
+				visitor.leaf(cursor.folder, cursor.nextLeaf());
+			}
+		}
+	}
+
+	//Level by level
+	public static void breadthFirst(FileSystem root, Consumer<? super FileSystem> visitor) {
+		breadthFirst(root, adapt(visitor));
+	}
+
+	public static void breadthFirst(FileSystem root, FileSystemVisitor visitor) {
+		visitor.node(root);
+		ArrayDeque<Folder> pending = new ArrayDeque<>();
+		if (root instanceof Folder) {
+			pending.add((Folder) root);
+		}
+		while (!pending.isEmpty()) {
+			ChildCursor cursor = new ChildCursor(pending.poll());
+			while (cursor.hasNext()) {
+				if (cursor.nextIsNode()) {
+					FileSystem child = cursor.nextNode();
+					visitor.node(child);
+					if (child instanceof Folder) {
+						pending.add((Folder) child);
+					}
+				} else {
+					visitor.leaf(cursor.folder, cursor.nextLeaf());
+				}
+			}
+		}
+	}
+
+	//Every node of the tree, in no particular order. parallel() hands whole subtrees to other workers. Stored
+	//leaves become File instances here, as every element of the stream has to be a FileSystem.
+	public static Stream<FileSystem> stream(FileSystem root) {
+		return StreamSupport.stream(new FileSystemSpliterator(root), false);
+	}
+
+	//Pushes the children of a folder with addFirst or addLast, without going through getChildren()
+	static void addChildren(Folder folder, ArrayDeque<FileSystem> deque, boolean first) {
+		ChildCursor cursor = new ChildCursor(folder);
+		while (cursor.hasNext()) {
+			FileSystem child = cursor.nextIsNode() ? cursor.nextNode() : new File(cursor.nextLeaf());
+			if (first) {
+				deque.addFirst(child);
+			} else {
+				deque.addLast(child);
+			}
+		}
+	}
+
+	private static FileSystemVisitor adapt(Consumer<? super FileSystem> visitor) {
+		return new FileSystemVisitor() {
+			public void node(FileSystem node) {
+				visitor.accept(node);
+			}
+
+			public void leaf(Folder parent, double size) {
+				visitor.accept(new File(size));
+			}
+		};
+	}
+}
+
+//Pending work is a deque of subtrees. Splitting gives away half of the pending subtrees; when only one folder
+//is pending it is opened up first, so even a single root can be split.
+class FileSystemSpliterator implements Spliterator<FileSystem> {
+	private static final int MIN_SPLIT = 2;
+	//Folders whose children were already handed out are emitted on their own
+	private final ArrayDeque<FileSystem> subtrees = new ArrayDeque<>();
+	private final ArrayDeque<FileSystem> opened = new ArrayDeque<>();
+	private long estimate;
+
+	FileSystemSpliterator(FileSystem root) {
+		subtrees.push(root);
+		estimate = Long.MAX_VALUE;
+	}
+
+	private FileSystemSpliterator(long estimate) {
+		this.estimate = estimate;
+	}
+
+	public boolean tryAdvance(Consumer<? super FileSystem> action) {
+		FileSystem node = opened.poll();
+		if (node == null) {
+			node = subtrees.poll();
+			if (node == null) {
+				return false;
+			}
+			if (node instanceof Folder) {
+				FileSystemTraversal.addChildren((Folder) node, subtrees, true);
+			}
+		}
+		action.accept(node);
+		return true;
+	}
+
+	public Spliterator<FileSystem> trySplit() {
+		if (subtrees.size() == 1 && subtrees.peek() instanceof Folder) {
+			Folder folder = (Folder) subtrees.pop();
+			opened.add(folder);
+			FileSystemTraversal.addChildren(folder, subtrees, false);
+		}
+		int size = subtrees.size();
+		if (size < MIN_SPLIT) {
+			return null;
+		}
+		FileSystemSpliterator split = new FileSystemSpliterator(estimate >>>= 1);
+		for (int i = size / 2; i > 0; i--) {
+			split.subtrees.push(subtrees.pollLast());
+		}
+		return split;
+	}
+
+	public long estimateSize() {
+		return estimate;
+	}
+
+	public int characteristics() {
+		return NONNULL;
+	}
+}
+
+//Immutable folder for lock free reads. Every change returns a new folder, so a reader holding a PersistentFolder
+//sees one consistent tree for as long as it likes. The total size is computed once when the folder is built.
+final class PersistentFolder implements FileSystem {
+	private static final FileSystem[] NO_CHILDREN = new FileSystem[0];
+	private final double ownSize;
+	private final FileSystem[] children;
+	private final double totalSize;
+
+	public PersistentFolder(double ownSize) {
+		this(ownSize, NO_CHILDREN);
+	}
+
+	private PersistentFolder(double ownSize, FileSystem[] children) {
+		this.ownSize = ownSize;
+		this.children = children;
+		double size = ownSize;
+		for (FileSystem child : children) {
+			size += child.getSize();
+		}
+		this.totalSize = size;
+	}
+
+	public double getSize() {
+		return totalSize;
+	}
+
+	public double getOwnSize() {
+		return ownSize;
+	}
+
+	public int getChildCount() {
+		return children.length;
+	}
+
+	public FileSystem getChild(int index) {
+		return children[index];
+	}
+
+	//Only immutable nodes may be shared between versions
+	public PersistentFolder withChild(FileSystem child) {
+		FileSystem[] copy = Arrays.copyOf(children, children.length + 1);
+		copy[children.length] = requireImmutable(child);
+		return new PersistentFolder(ownSize, copy);
+	}
+
+	public PersistentFolder withChildAt(int index, FileSystem child) {
+		FileSystem[] copy = children.clone();
+		copy[index] = requireImmutable(child);
+		return new PersistentFolder(ownSize, copy);
+	}
+
+	private static FileSystem requireImmutable(FileSystem child) {
+		if (!(child instanceof File) && !(child instanceof PersistentFolder)) {
+			throw new IllegalArgumentException("Only File and PersistentFolder can be added, got " + child.getClass().getName());
+		}
+		return child;
+	}
+}
+
+//Folder tree that can be changed while other threads read it. Writers copy the folders on the path to the
+//change, share every untouched subtree, and publish the new root with a compare-and-set. Readers take a
+//snapshot() and walk it without any locking.
+class ConcurrentFileSystem implements FileSystem {
+	private final AtomicReference<PersistentFolder> root;
+
+	public ConcurrentFileSystem(double rootSize) {
+		this.root = new AtomicReference<>(new PersistentFolder(rootSize));
+	}
+
+	public PersistentFolder snapshot() {
+		return root.get();
+	}
+
+	public double getSize() {
+		return root.get().getSize();
+	}
+
+	//path lists the child index of each folder from the root down to the folder receiving the child
+	public void addChild(FileSystem child, int... path) {
+		PersistentFolder current;
+		PersistentFolder updated;
+		do {
+			current = root.get();
+			PersistentFolder[] folders = new PersistentFolder[path.length + 1];
+			folders[0] = current;
+			for (int i = 0; i < path.length; i++) {
+				FileSystem next = folders[i].getChild(path[i]);
+				if (!(next instanceof PersistentFolder)) {
+					throw new IllegalArgumentException("Path element " + i + " is not a folder");
+				}
+				folders[i + 1] = (PersistentFolder) next;
+			}
+			updated = folders[path.length].withChild(child);
+			for (int i = path.length - 1; i >= 0; i--) {
+				updated = folders[i].withChildAt(path[i], updated);
+			}
+		} while (!root.compareAndSet(current, updated));
+	}
+}
+
+//Read throughput of snapshot reads against a ReadWriteLock protected Folder as the writer rate grows.
+//Run with: java com.structural.pattern.CompositeSnapshotBenchmark
+class CompositeSnapshotBenchmark {
+	private static final int READERS = 4;
+	private static final long RUN_MILLIS = 1_000;
+
+	//The locking alternative: the mutable Folder guarded by one ReadWriteLock
+	static class LockedFolderTree {
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+		private final Folder root = new Folder(0);
+		private final List<Folder> folders = new ArrayList<>();
+
+		LockedFolderTree() {
+			for (int i = 0; i < 64; i++) {
+				Folder folder = new Folder(1);
+				for (int j = 0; j < 64; j++) {
+					folder.addChild(new File(1));
+				}
+				root.addChild(folder);
+				folders.add(folder);
+			}
+		}
+
+		void addChild(int folder, FileSystem child) {
+			lock.writeLock().lock();
+			try {
+				folders.get(folder).addChild(child);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		long countNodes() {
+			lock.readLock().lock();
+			try {
+				//One callback per node and per stored leaf, like the snapshot side visits every child
+				long[] nodes = new long[1];
+				FileSystemTraversal.preOrder(root, new FileSystemVisitor() {
+					public void node(FileSystem node) {
+						nodes[0]++;
+					}
+
+					public void leaf(Folder parent, double size) {
+						nodes[0]++;
+					}
+				});
+				return nodes[0];
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+
+	static ConcurrentFileSystem snapshotTree() {
+		ConcurrentFileSystem tree = new ConcurrentFileSystem(0);
+		for (int i = 0; i < 64; i++) {
+			tree.addChild(new PersistentFolder(1));
+			for (int j = 0; j < 64; j++) {
+				tree.addChild(new File(1), i);
+			}
+		}
+		return tree;
+	}
+
+	static long countNodes(PersistentFolder root) {
+		long nodes = 0;
+		ArrayDeque<PersistentFolder> pending = new ArrayDeque<>();
+		pending.push(root);
+		while (!pending.isEmpty()) {
+			PersistentFolder folder = pending.pop();
+			nodes++;
+			for (int i = 0; i < folder.getChildCount(); i++) {
+				FileSystem child = folder.getChild(i);
+				if (child instanceof PersistentFolder) {
+					pending.push((PersistentFolder) child);
+				} else {
+					nodes++;
+				}
+			}
+		}
+		return nodes;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		for (int writesPerSecond : new int[] { 0, 100, 1_000, 10_000 }) {
+			ConcurrentFileSystem snapshots = snapshotTree();
+			double snapshotReads = run(writesPerSecond, () -> countNodes(snapshots.snapshot()),
+					i -> snapshots.addChild(new File(1), i % 64));
+			LockedFolderTree locked = new LockedFolderTree();
+			double lockedReads = run(writesPerSecond, locked::countNodes, i -> locked.addChild(i % 64, new File(1)));
+			System.out.printf("%6d writes/s: snapshot %,10.0f reads/s, ReadWriteLock %,10.0f reads/s%n", writesPerSecond,
+					snapshotReads, lockedReads);
+		}
+	}
+
+	static double run(int writesPerSecond, LongSupplier read, IntConsumer write) throws InterruptedException {
+		AtomicBoolean running = new AtomicBoolean(true);
+		LongAdder reads = new LongAdder();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < READERS; i++) {
+			threads.add(new Thread(() -> {
+				while (running.get()) {
+					read.getAsLong();
+					reads.increment();
+				}
+			}));
+		}
+		if (writesPerSecond > 0) {
+			long interval = 1_000_000_000L / writesPerSecond;
+			threads.add(new Thread(() -> {
+				long next = System.nanoTime();
+				for (int i = 0; running.get(); i++) {
+					write.accept(i);
+					next += interval;
+					LockSupport.parkNanos(next - System.nanoTime());
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		Thread.sleep(RUN_MILLIS);
+		running.set(false);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return reads.sum() * 1000.0 / RUN_MILLIS;
+	}
+}
+
+//Checks deep chains and compares the iterative engine with plain recursion.
+//Run with: java com.structural.pattern.CompositeTraversalBenchmark
+class CompositeTraversalBenchmark {
+	static double recursiveSize(FileSystem node) {
+		if (!(node instanceof Folder)) {
+			return node.getSize();
+		}
+		Folder folder = (Folder) node;
+		double size = folder.getOwnSize();
+		for (int i = 0; i < folder.leafCount(); i++) {
+			size += folder.leafSize(i);
+		}
+		for (int i = 0; i < folder.nodeCount(); i++) {
+			size += recursiveSize(folder.node(i));
+		}
+		return size;
+	}
+
+	static Folder chain(int depth) {
+		Folder root = new Folder(1);
+		Folder current = root;
+		for (int i = 1; i < depth; i++) {
+			Folder next = new Folder(1);
+			current.addChild(next);
+			current = next;
+		}
+		current.addChild(new File(1));
+		return root;
+	}
+
+	//Balanced tree of folders with fanOut children per level and leaves at the bottom
+	static Folder balanced(int depth, int fanOut) {
+		Folder folder = new Folder(1);
+		for (int i = 0; i < fanOut; i++) {
+			folder.addChild(depth == 0 ? new File(1) : balanced(depth - 1, fanOut));
+		}
+		return folder;
+	}
+
+	public static void main(String[] args) {
+		int depth = 1_000_000;
+		Folder deep = chain(depth);
+		System.out.println("chain of " + depth + " folders, getSize() = " + deep.getSize());
+		long[] counts = new long[3];
+		FileSystemTraversal.preOrder(deep, node -> counts[0]++);
+		FileSystemTraversal.postOrder(deep, node -> counts[1]++);
+		FileSystemTraversal.breadthFirst(deep, node -> counts[2]++);
+		System.out.println("pre/post/breadth-first visited " + counts[0] + "/" + counts[1] + "/" + counts[2]
+				+ ", stream counted " + FileSystemTraversal.stream(deep).count());
+		try {
+			recursiveSize(deep);
+			System.out.println("recursion survived the chain");
+		} catch (StackOverflowError e) {
+			System.out.println("recursion: StackOverflowError");
+		}
+
+		Folder wide = balanced(6, 8);
+		long nodes = FileSystemTraversal.stream(wide).count();
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			double recursive = recursiveSize(wide);
+			long recursion = System.nanoTime() - start;
+			start = System.nanoTime();
+			double iterative = wide.getSize();
+			long explicit = System.nanoTime() - start;
+			start = System.nanoTime();
+			double streamed = FileSystemTraversal.stream(wide).parallel()
+					.mapToDouble(node -> node instanceof Folder ? ((Folder) node).getOwnSize() : node.getSize()).sum();
+			long parallel = System.nanoTime() - start;
+			System.out.printf("round %d, %d nodes: recursion %.1f ms, explicit stack %.1f ms, parallel stream %.1f ms (%s/%s/%s)%n",
+					round, nodes, recursion / 1e6, explicit / 1e6, parallel / 1e6, recursive, iterative, streamed);
+		}
+	}
+}
+
+//Path lookups, globbing and top-k largest subtrees on a tree of about 10^6 named nodes, against a full
+//traversal that sizes and sorts every folder.
+//Run with: java com.structural.pattern.CompositeQueryBenchmark
+class CompositeQueryBenchmark {
+	//Folders fanOut wide and depth deep, with files leaf folders holding files
+	static Folder build(int depth, int fanOut, int files, Random random) {
+		Folder root = new Folder(null, 0);
+		ArrayDeque<Folder> pending = new ArrayDeque<>();
+		ArrayDeque<Integer> levels = new ArrayDeque<>();
+		pending.push(root);
+		levels.push(0);
+		while (!pending.isEmpty()) {
+			Folder folder = pending.pop();
+			int level = levels.pop();
+			if (level == depth) {
+				for (int i = 0; i < files; i++) {
+					folder.addChild(new File("f" + i + ".dat", random.nextInt(1_000_000)));
+				}
+				continue;
+			}
+			for (int i = 0; i < fanOut; i++) {
+				Folder child = new Folder("d" + i, random.nextInt(100));
+				folder.addChild(child);
+				pending.push(child);
+				levels.push(level + 1);
+			}
+		}
+		return root;
+	}
+
+	//The baseline: size every folder in one post order pass, then sort them all
+	static List<Folder> sortAll(Folder root, int k) {
+		List<Folder> folders = new ArrayList<>();
+		FileSystemTraversal.preOrder(root, new FileSystemVisitor() {
+			public void node(FileSystem node) {
+				if (node instanceof Folder) {
+					folders.add((Folder) node);
+				}
+			}
+
+			public void leaf(Folder parent, double size) {
+			}
+		});
+		IdentityHashMap<Folder, Double> sizes = new IdentityHashMap<>(folders.size() * 2);
+		for (int i = folders.size() - 1; i >= 0; i--) {
+			Folder folder = folders.get(i);
+			double size = folder.getOwnSize();
+			for (int j = 0; j < folder.leafCount(); j++) {
+				size += folder.leafSize(j);
+			}
+			for (int j = 0; j < folder.nodeCount(); j++) {
+				FileSystem child = folder.node(j);
+				size += child instanceof Folder ? sizes.get(child) : child.getSize();
+			}
+			sizes.put(folder, size);
+		}
+		folders.sort(Comparator.comparingDouble((Folder folder) -> sizes.get(folder)).reversed());
+		return folders.subList(0, Math.min(k, folders.size()));
+	}
+
+	public static void main(String[] args) {
+		Random random = new Random(42);
+		Folder root = build(5, 10, 9, random);
+		long nodes = FileSystemTraversal.stream(root).count();
+		System.out.printf("tree of %,d nodes%n", nodes);
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			List<Folder> sorted = sortAll(root, 100);
+			long sorting = System.nanoTime() - start;
+			start = System.nanoTime();
+			List<Folder> heap = root.largestSubtrees(100);
+			long query = System.nanoTime() - start;
+			boolean same = true;
+			for (int i = 0; i < heap.size(); i++) {
+				same &= heap.get(i).getSubtreeSize() == sorted.get(i).getSubtreeSize();
+			}
+			System.out.printf("round %d, top 100: traverse and sort %.1f ms, cached best first %.3f ms, same sizes %s%n",
+					round, sorting / 1e6, query / 1e6, same);
+			//Changes one leaf folder so the next round has to refresh the aggregates on its path
+			((Folder) root.resolve("d1/d2/d3/d4/d5")).addChild(new File(1));
+		}
+
+		String[] paths = new String[100_000];
+		for (int i = 0; i < paths.length; i++) {
+			paths[i] = "d" + random.nextInt(10) + "/d" + random.nextInt(10) + "/d" + random.nextInt(10) + "/d"
+					+ random.nextInt(10) + "/d" + random.nextInt(10) + "/f" + random.nextInt(9) + ".dat";
+		}
+		long start = System.nanoTime();
+		long found = 0;
+		for (String path : paths) {
+			found += root.resolve(path) != null ? 1 : 0;
+		}
+		System.out.printf("resolve: %,d of %,d paths found, %.0f ns per path%n", found, paths.length,
+				(System.nanoTime() - start) / (double) paths.length);
+
+		start = System.nanoTime();
+		int literal = root.glob("d3/d1/*/d?/d9/f*.dat").size();
+		long literalTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		int anywhere = root.glob("**/f8.dat").size();
+		System.out.printf("glob d3/d1/*/d?/d9/f*.dat: %d matches in %.2f ms, **/f8.dat: %,d matches in %.1f ms%n",
+				literal, literalTime / 1e6, anywhere, (System.nanoTime() - start) / 1e6);
+
+		Folder folder = root.largestSubtrees(2).get(1);
+		System.out.println("largest sub folder " + folder.getPath() + ", resolves back: "
+				+ (root.resolve(folder.getPath()) == folder) + ", cached size matches getSize(): "
+				+ (Math.abs(folder.getSubtreeSize() - folder.getSize()) < 1e-6));
+
+		//A node that changes without telling its folder must not leave a stale cached size behind
+		Folder parent = new Folder("parent", 0);
+		Folder small = new Folder("small", 50);
+		ConcurrentFileSystem live = new ConcurrentFileSystem(1);
+		parent.addChild(small);
+		parent.addChild(live);
+		parent.getSubtreeSize();
+		live.addChild(new File(100));
+		System.out.println("live child tracked: " + (parent.getSubtreeSize() == 101 + 50 && parent.getSize() == 151
+				&& parent.largestSubtrees(2).get(1) == small && small.getSubtreeSize() == 50));
+	}
+}
+
+//getSize() and heap use of the leaf specialized Folder against the previous layout, which kept every child in
+//one List<FileSystem> and called getSize() on each file through the interface.
+//Run with: java com.structural.pattern.CompositeShapeBenchmark
+class CompositeShapeBenchmark {
+	//The previous Folder layout and its iterative getSize()
+	static class ListFolder implements FileSystem {
+		private final double size;
+		private final List<FileSystem> childrens = new ArrayList<FileSystem>();
+
+		ListFolder(double size) {
+			this.size = size;
+		}
+
+		void addChild(FileSystem file) {
+			childrens.add(file);
+		}
+
+		public double getSize() {
+			double size = 0;
+			ArrayDeque<ListFolder> pending = new ArrayDeque<>();
+			pending.push(this);
+			while (!pending.isEmpty()) {
+				ListFolder folder = pending.pop();
+				size += folder.size;
+				for (FileSystem fileSystem : folder.childrens) {
+					if (fileSystem instanceof ListFolder) {
+						pending.push((ListFolder) fileSystem);
+					} else {
+						size += fileSystem.getSize();
+					}
+				}
+			}
+			return size;
+		}
+	}
+
+	static Folder folders(int folders, int files) {
+		Folder root = new Folder(0);
+		for (int i = 0; i < folders; i++) {
+			Folder folder = new Folder(1);
+			for (int j = 0; j < files; j++) {
+				folder.addChild(new File(j));
+			}
+			root.addChild(folder);
+		}
+		return root;
+	}
+
+	static ListFolder listFolders(int folders, int files) {
+		ListFolder root = new ListFolder(0);
+		for (int i = 0; i < folders; i++) {
+			ListFolder folder = new ListFolder(1);
+			for (int j = 0; j < files; j++) {
+				folder.addChild(new File(j));
+			}
+			root.addChild(folder);
+		}
+		return root;
+	}
+
+	static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	//Best of several timed runs, in ms
+	static double time(FileSystem root, double expected) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 20; i++) {
+			long start = System.nanoTime();
+			double size = root.getSize();
+			best = Math.min(best, System.nanoTime() - start);
+			if (size != expected) {
+				throw new AssertionError(size + " != " + expected);
+			}
+		}
+		return best / 1e6;
+	}
+
+	public static void main(String[] args) {
+		for (int[] shape : new int[][] { { 100_000, 10 }, { 10_000, 100 }, { 1_000, 1_000 } }) {
+			int folders = shape[0], files = shape[1];
+			double expected = folders * (1 + files * (files - 1) / 2.0);
+			long before = usedHeap();
+			ListFolder listTree = listFolders(folders, files);
+			long listHeap = usedHeap() - before;
+			double listTime = time(listTree, expected);
+			listTree = null;
+
+			before = usedHeap();
+			Folder tree = folders(folders, files);
+			long leafHeap = usedHeap() - before;
+			double leafTime = time(tree, expected);
+			System.out.printf("%,7d folders x %,5d files: getSize list %6.2f ms, specialized %6.2f ms; heap list %,6.1f MB, specialized %,6.1f MB%n",
+					folders, files, listTime, leafTime, listHeap / 1e6, leafHeap / 1e6);
+			tree = null;
+		}
+	}
+}
+
 public class CompositePattern {
+	//Records one size computation and checks the event, run by PatternEvents
+	static int checkEvents() throws Exception {
+		Folder root = new Folder(1);
+		Folder child = new Folder(0);
+		child.addChild(new File(4));
+		root.addChild(child);
+		root.addChild(new File(2));
+		List<RecordedEvent> events = PatternEventRecorder.record(root::getSize, PatternEvents.COMPOSITE_SIZE);
+		PatternEventRecorder.check(events.size() == 1 && events.get(0).getLong("nodes") == 4 && events.get(0).getDouble("size") == 7,
+				"one composite traversal over 4 nodes");
+		return events.size();
+	}
 
 	public static void main(String[] args) {
 		Folder root = new Folder(0.5);
@@ -74,6 +1343,17 @@ public class CompositePattern {
 		subFolder1.addChild(subFolder2);
 		root.addChild(subFolder1);
 		System.out.println("Total size is:"+root.getSize());
+		
+		Folder home = new Folder("home", 0);
+		Folder docs = new Folder("docs", 0);
+		docs.addChild(new File("notes.txt", 3));
+		docs.addChild(new File("todo.txt", 1));
+		home.addChild(docs);
+		home.addChild(new File("photo.jpg", 40));
+		root.addChild(home);
+		System.out.println("home/docs/notes.txt has size:"+root.resolve("home/docs/notes.txt").getSize());
+		System.out.println("**/*.txt matches "+root.glob("**/*.txt").size()+" files");
+		System.out.println("Largest folder below root is:"+root.largestSubtrees(2).get(1).getPath());
 	}
 
 }
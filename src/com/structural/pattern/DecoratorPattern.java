@@ -1,5 +1,17 @@
 package com.structural.pattern;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
 /*
  	Decorator :
  	A Decorator pattern can be used to attach additional responsibilities to an object 
@@ -50,6 +62,45 @@ class BasePizza implements Pizza {
 	}
 }
 
+//Which steps of a decorated stack have to finish before a decorator's own step can run
+final class DecoratorOrdering {
+	private static final DecoratorOrdering SEQUENTIAL = new DecoratorOrdering(null);
+	private static final DecoratorOrdering INDEPENDENT = new DecoratorOrdering(Collections.emptySet());
+	private final Set<Class<? extends PizzaDecorator>> after;
+
+	private DecoratorOrdering(Set<Class<? extends PizzaDecorator>> after) {
+		this.after = after;
+	}
+
+	//Runs after everything it wraps, the classic decorator behaviour
+	public static DecoratorOrdering sequential() {
+		return SEQUENTIAL;
+	}
+
+	//Only needs the base pizza
+	public static DecoratorOrdering independent() {
+		return INDEPENDENT;
+	}
+
+	//Needs the base pizza and the listed decorators, when they are wrapped inside this one
+	@SafeVarargs
+	public static DecoratorOrdering after(Class<? extends PizzaDecorator>... decorators) {
+		Set<Class<? extends PizzaDecorator>> after = new HashSet<>();
+		for (Class<? extends PizzaDecorator> decorator : decorators) {
+			after.add(decorator);
+		}
+		return new DecoratorOrdering(Collections.unmodifiableSet(after));
+	}
+
+	boolean isSequential() {
+		return after == null;
+	}
+
+	boolean runsAfter(PizzaDecorator decorator) {
+		return after != null && after.contains(decorator.getClass());
+	}
+}
+
 abstract class PizzaDecorator implements Pizza {
 	private Pizza pizza;
 
@@ -59,6 +110,19 @@ abstract class PizzaDecorator implements Pizza {
 
 	public void prepare() {
 		pizza.prepare();
+		decorate();
+	}
+
+	//The decorator's own step, without the wrapped pizza
+	protected abstract void decorate();
+
+	//Used by ParallelPizzaPreparer; prepare() always runs the steps one after another
+	protected DecoratorOrdering ordering() {
+		return DecoratorOrdering.sequential();
+	}
+
+	Pizza getPizza() {
+		return pizza;
 	}
 }
 
@@ -67,10 +131,13 @@ class PepperoniPizza extends PizzaDecorator {
 		super(pizza);
 	}
 
-	public void prepare() {
-		super.prepare();
+	protected void decorate() {
 		System.out.println("Adding pepperoni on pizza");
 	}
+
+	protected DecoratorOrdering ordering() {
+		return DecoratorOrdering.independent();
+	}
 }
 
 class CapsicumPizza extends PizzaDecorator {
@@ -78,10 +145,13 @@ class CapsicumPizza extends PizzaDecorator {
 		super(pizza);
 	}
 
-	public void prepare() {
-		super.prepare();
+	protected void decorate() {
 		System.out.println("Adding capsicum on pizza");
 	}
+
+	protected DecoratorOrdering ordering() {
+		return DecoratorOrdering.independent();
+	}
 }
 
 class OnionPizza extends PizzaDecorator {
@@ -89,10 +159,146 @@ class OnionPizza extends PizzaDecorator {
 		super(pizza);
 	}
 
-	public void prepare() {
-		super.prepare();
+	protected void decorate() {
 		System.out.println("Adding onion on pizza");
 	}
+
+	protected DecoratorOrdering ordering() {
+		return DecoratorOrdering.independent();
+	}
+}
+
+//Runs a decorated stack as a small DAG: the base pizza first, then every decorator as soon as the steps it
+//declared in ordering() are done. Independent steps run in parallel on the shared executor, sequential ones
+//keep the plain prepare() order.
+class ParallelPizzaPreparer {
+	private final Executor executor;
+
+	public ParallelPizzaPreparer() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public ParallelPizzaPreparer(Executor executor) {
+		this.executor = executor;
+	}
+
+	public void prepare(Pizza pizza) {
+		//Unwrap into base first, outermost decorator last
+		List<PizzaDecorator> decorators = new ArrayList<>();
+		Pizza base = pizza;
+		while (base instanceof PizzaDecorator) {
+			decorators.add(0, (PizzaDecorator) base);
+			base = ((PizzaDecorator) base).getPizza();
+		}
+		Pizza basePizza = base;
+		CompletableFuture<Void> baseStep = CompletableFuture.runAsync(basePizza::prepare, executor);
+		List<CompletableFuture<Void>> steps = new ArrayList<>(decorators.size());
+		for (int i = 0; i < decorators.size(); i++) {
+			PizzaDecorator decorator = decorators.get(i);
+			DecoratorOrdering ordering = decorator.ordering();
+			List<CompletableFuture<Void>> before = new ArrayList<>();
+			before.add(baseStep);
+			for (int j = 0; j < i; j++) {
+				if (ordering.isSequential() || ordering.runsAfter(decorators.get(j))) {
+					before.add(steps.get(j));
+				}
+			}
+			CompletableFuture<Void> ready = CompletableFuture.allOf(before.toArray(new CompletableFuture<?>[0]));
+			steps.add(ready.thenRunAsync(decorator::decorate, executor));
+		}
+		steps.add(baseStep);
+		try {
+			CompletableFuture.allOf(steps.toArray(new CompletableFuture<?>[0])).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
+
+//Latency of a stack of expensive decorators with prepare() against ParallelPizzaPreparer.
+//Run with: java com.structural.pattern.DecoratorDagBenchmark
+class DecoratorDagBenchmark {
+	private static final long STEP_MILLIS = 50;
+
+	static void work() {
+		try {
+			Thread.sleep(STEP_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	static class SlowBase implements Pizza {
+		public void prepare() {
+			work();
+		}
+	}
+
+	static class SlowTopping extends PizzaDecorator {
+		SlowTopping(Pizza pizza) {
+			super(pizza);
+		}
+
+		protected void decorate() {
+			work();
+		}
+
+		protected DecoratorOrdering ordering() {
+			return DecoratorOrdering.independent();
+		}
+	}
+
+	//Has to wait for every topping
+	static class SlowBake extends PizzaDecorator {
+		SlowBake(Pizza pizza) {
+			super(pizza);
+		}
+
+		protected void decorate() {
+			work();
+		}
+	}
+
+	//Needs the sauce only
+	static class SlowSauce extends SlowTopping {
+		SlowSauce(Pizza pizza) {
+			super(pizza);
+		}
+	}
+
+	static class SlowCheese extends SlowTopping {
+		SlowCheese(Pizza pizza) {
+			super(pizza);
+		}
+
+		protected DecoratorOrdering ordering() {
+			return DecoratorOrdering.after(SlowSauce.class);
+		}
+	}
+
+	public static void main(String[] args) {
+		//base, sauce -> cheese, 3 independent toppings, then bake: 7 steps, critical path of 4
+		Pizza pizza = new SlowBake(new SlowTopping(new SlowTopping(new SlowTopping(new SlowCheese(new SlowSauce(new SlowBase()))))));
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		ParallelPizzaPreparer preparer = new ParallelPizzaPreparer(pool);
+		try {
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				pizza.prepare();
+				long sequential = System.nanoTime() - start;
+				start = System.nanoTime();
+				preparer.prepare(pizza);
+				long parallel = System.nanoTime() - start;
+				System.out.printf("round %d: prepare() %.0f ms, DAG %.0f ms%n", round, sequential / 1e6, parallel / 1e6);
+			}
+		} finally {
+			pool.shutdown();
+		}
+		new ParallelPizzaPreparer().prepare(new OnionPizza(new CapsicumPizza(new PepperoniPizza(new BasePizza()))));
+	}
 }
 
 public class DecoratorPattern {
@@ -1,5 +1,7 @@
 package com.structural.pattern;
 
+import java.util.function.Supplier;
+
 /*
     Facade:
 	Facade is a structural design pattern that provides a simplified interface to a library a framework or 
@@ -64,31 +66,163 @@ class Oneplus implements MobileShop {
 	}
 }
 
+//How the facade brings its subsystems up
+enum InitStrategy {
+	EAGER,   //construct every subsystem in the facade constructor
+	LAZY,    //construct each subsystem on its first use
+	PREWARM  //construct lazily, but warm all of them concurrently on background threads, one per subsystem
+}
+
+//Thread safe holder that creates the subsystem on first use (double checked locking)
+class LazySubsystem<T> {
+	private final Supplier<? extends T> factory;
+	private volatile T instance;
+
+	public LazySubsystem(Supplier<? extends T> factory) {
+		this.factory = factory;
+	}
+
+	public T get() {
+		T result = instance;
+		if (result == null) {
+			synchronized (this) {
+				result = instance;
+				if (result == null) {
+					result = factory.get();
+					instance = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	public boolean isInitialized() {
+		return instance != null;
+	}
+}
+
 //Facade class
 class ShopKeeper {
-	private Iphone iphone;
-	private Samsung samsung;
-	private Oneplus oneplus;
+	private final LazySubsystem<MobileShop> iphone;
+	private final LazySubsystem<MobileShop> samsung;
+	private final LazySubsystem<MobileShop> oneplus;
+	private final Thread[] prewarmers;
+	private static final Thread[] NO_PREWARMERS = {};
 	
 	public ShopKeeper() {
-		this.iphone = new Iphone();
-		this.samsung = new Samsung();
-		this.oneplus = new Oneplus();
+		this(InitStrategy.LAZY);
+	}
+	
+	public ShopKeeper(InitStrategy strategy) {
+		this(strategy, Iphone::new, Samsung::new, Oneplus::new);
+	}
+	
+	ShopKeeper(InitStrategy strategy, Supplier<? extends MobileShop> iphone,
+			Supplier<? extends MobileShop> samsung, Supplier<? extends MobileShop> oneplus) {
+		this.iphone = new LazySubsystem<>(iphone);
+		this.samsung = new LazySubsystem<>(samsung);
+		this.oneplus = new LazySubsystem<>(oneplus);
+		
+		switch (strategy) {
+		case EAGER:
+			warmUp();
+			this.prewarmers = NO_PREWARMERS;
+			break;
+		case PREWARM:
+			//The constructors overlap instead of running back to back, and none of them runs on the caller
+			this.prewarmers = new Thread[] { prewarm(this.iphone, "iphone"), prewarm(this.samsung, "samsung"),
+					prewarm(this.oneplus, "oneplus") };
+			break;
+		default:
+			this.prewarmers = NO_PREWARMERS;
+		}
+	}
+
+	private static Thread prewarm(LazySubsystem<?> subsystem, String name) {
+		Thread thread = new Thread(subsystem::get, "shopkeeper-prewarm-" + name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
+	private void warmUp() {
+		iphone.get();
+		samsung.get();
+		oneplus.get();
+	}
+	
+	//Blocks until every subsystem is constructed
+	public void awaitReady() throws InterruptedException {
+		for (Thread prewarmer : prewarmers) {
+			prewarmer.join();
+		}
+		warmUp();
+	}
+	
+	public boolean isReady() {
+		return iphone.isInitialized() && samsung.isInitialized() && oneplus.isInitialized();
 	}
 	
 	public void iphoneSale() {
-		iphone.getModel();
-		iphone.getPrice();
+		sale(iphone.get());
 	}
 	
 	public void samsungSale() {
-		samsung.getModel();
-		samsung.getPrice();
+		sale(samsung.get());
 	}
 	
 	public void oneplusSale() {
-		oneplus.getModel();
-		oneplus.getPrice();
+		sale(oneplus.get());
+	}
+	
+	private void sale(MobileShop shop) {
+		shop.getModel();
+		shop.getPrice();
+	}
+}
+
+//Compares time to first request and time to ready for each InitStrategy when subsystems are heavy to build.
+//Run with: java com.structural.pattern.FacadeStartupBenchmark
+class FacadeStartupBenchmark {
+	private static final long INIT_COST_MILLIS = 50;
+	private static final int ROUNDS = 5;
+
+	//Stand in for a real subsystem with an expensive constructor
+	static class HeavyMobileShop implements MobileShop {
+		HeavyMobileShop() {
+			try {
+				Thread.sleep(INIT_COST_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		public void getModel() {
+		}
+		public void getPrice() {
+		}
+	}
+
+	static ShopKeeper newShopKeeper(InitStrategy strategy) {
+		return new ShopKeeper(strategy, HeavyMobileShop::new, HeavyMobileShop::new, HeavyMobileShop::new);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		System.out.printf("Subsystem init cost %d ms, %d rounds%n", INIT_COST_MILLIS, ROUNDS);
+		for (InitStrategy strategy : InitStrategy.values()) {
+			long firstRequest = 0;
+			long ready = 0;
+			for (int i = 0; i < ROUNDS; i++) {
+				long start = System.nanoTime();
+				newShopKeeper(strategy).iphoneSale();
+				firstRequest += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				newShopKeeper(strategy).awaitReady();
+				ready += System.nanoTime() - start;
+			}
+			System.out.printf("%-8s time-to-first-request %6.1f ms, time-to-ready %6.1f ms%n", strategy,
+					firstRequest / 1e6 / ROUNDS, ready / 1e6 / ROUNDS);
+		}
 	}
 }
 
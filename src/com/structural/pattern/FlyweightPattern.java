@@ -1,7 +1,36 @@
 package com.structural.pattern;
 
-import java.util.HashMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.common.pattern.PatternEventRecorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
 
 /*
   Flyweight :
@@ -66,6 +95,17 @@ class Color{
 	public String getColorName() {
 		return name;
 	}
+	
+	//The name is the intrinsic state, so equal names share one flyweight, also across restarts
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof Color && name.equals(((Color) other).name);
+	}
+	
+	@Override
+	public int hashCode() {
+		return name.hashCode();
+	}
 }
 
 class EngineI {
@@ -77,15 +117,175 @@ class EngineI {
 	}
 }
 
+//Flight recorder events of the factory, see PatternEvents
+@Name("com.structural.pattern.FlyweightLookup")
+@Label("Flyweight Lookup")
+@Category({ "Design Patterns", "Flyweight" })
+@Enabled(false)
+@StackTrace(false)
+class FlyweightLookupEvent extends Event {
+	@Label("Key")
+	String key;
+
+	@Label("Hit")
+	boolean hit;
+}
+
+@Name("com.structural.pattern.FlyweightCreation")
+@Label("Flyweight Creation")
+@Category({ "Design Patterns", "Flyweight" })
+@Enabled(false)
+@StackTrace(false)
+class FlyweightCreationEvent extends Event {
+	@Label("Key")
+	String key;
+}
+
 class VehicalFactory{
-	private static Map<Color, VehicleI> vehiclesCache  = new HashMap<>();
+	//File layout: magic, version, entry count, then per entry hottest first: access count (varint) and
+	//color name (modified UTF-8)
+	private static final int WARM_START_MAGIC = 0x464C5957;
+	private static final int WARM_START_VERSION = 1;
+	
+	private static Map<Color, Flyweight> vehiclesCache  = new ConcurrentHashMap<>();
+	
+	private static final class Flyweight {
+		final VehicleI vehicle;
+		final LongAdder accesses = new LongAdder();
+		
+		Flyweight(VehicleI vehicle) {
+			this.vehicle = vehicle;
+		}
+	}
 
 	public static VehicleI createVehicle(Color color) {
-		VehicleI newVehicle = vehiclesCache.computeIfAbsent(color, newColor -> { 
-			EngineI newEngine = new EngineI();
-	        return new Truck(newEngine, newColor);
-	    });
-	    return newVehicle;
+		FlyweightLookupEvent lookup = new FlyweightLookupEvent();
+		lookup.begin();
+		Flyweight flyweight = vehiclesCache.get(color);
+		boolean hit = flyweight != null;
+		if (!hit) {
+			flyweight = vehiclesCache.computeIfAbsent(color, VehicalFactory::newFlyweight);
+		}
+		flyweight.accesses.increment();
+		if (lookup.shouldCommit()) {
+			lookup.key = color.getColorName();
+			lookup.hit = hit;
+			lookup.commit();
+		}
+	    return flyweight.vehicle;
+	}
+	
+	private static Flyweight newFlyweight(Color color) {
+		FlyweightCreationEvent creation = new FlyweightCreationEvent();
+		creation.begin();
+		EngineI newEngine = new EngineI();
+		Truck truck = new Truck(newEngine, color);
+		if (creation.shouldCommit()) {
+			creation.key = color.getColorName();
+			creation.commit();
+		}
+		return new Flyweight(truck);
+	}
+	
+	public static int size() {
+		return vehiclesCache.size();
+	}
+	
+	//Empties the pool, e.g. to simulate a fresh start
+	static void clear() {
+		vehiclesCache.clear();
+	}
+	
+	//Writes the keys of the pool with their access counts, hottest first. The file is replaced atomically, so a
+	//crash while dumping leaves the previous file intact. Returns the number of keys written.
+	public static int dumpKeys(Path file) throws IOException {
+		List<Map.Entry<String, Long>> keys = new ArrayList<>(vehiclesCache.size());
+		vehiclesCache.forEach((color, flyweight) -> keys.add(Map.entry(color.getColorName(), flyweight.accesses.sum())));
+		keys.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+		Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(WARM_START_MAGIC);
+			out.writeByte(WARM_START_VERSION);
+			out.writeInt(keys.size());
+			for (Map.Entry<String, Long> key : keys) {
+				writeVarLong(out, key.getValue());
+				out.writeUTF(key.getKey());
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return keys.size();
+	}
+	
+	//Dumps the keys when the JVM shuts down normally
+	public static void dumpKeysOnShutdown(Path file) {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				dumpKeys(file);
+			} catch (IOException e) {
+				System.err.println("Could not save flyweight keys to " + file + ": " + e);
+			}
+		}, "flyweight-dump"));
+	}
+	
+	//Creates the flyweights listed in a dump, hottest first, on a background thread while callers are already
+	//served, and seeds their access counts from the dump. Completes with the number of keys read; a missing file is not an error and loads nothing.
+	public static CompletableFuture<Integer> warmStart(Path file) {
+		CompletableFuture<Integer> loaded = new CompletableFuture<>();
+		Thread loader = new Thread(() -> {
+			try {
+				loaded.complete(preload(file));
+			} catch (IOException e) {
+				loaded.completeExceptionally(new UncheckedIOException(e));
+			} catch (RuntimeException | Error e) {
+				loaded.completeExceptionally(e);
+			}
+		}, "flyweight-warm-start");
+		loader.setDaemon(true);
+		loader.start();
+		return loaded;
+	}
+	
+	private static int preload(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != WARM_START_MAGIC || in.readByte() != WARM_START_VERSION) {
+				throw new IOException("Not a flyweight key file: " + file);
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				//Previous traffic counts at half weight, so the order survives restarts but old traffic fades
+				long accesses = readVarLong(in) / 2;
+				vehiclesCache.computeIfAbsent(new Color(in.readUTF()), VehicalFactory::newFlyweight).accesses.add(accesses);
+			}
+			return count;
+		} catch (NoSuchFileException e) {
+			return 0;
+		}
+	}
+	
+	private static void writeVarLong(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+	
+	private static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed access count");
 	}
 }
 
@@ -109,7 +309,105 @@ class Truck implements VehicleI{
 	}
 }
 
+//Lookup latency after a restart with an empty pool and with a warm start from the previous run's dump.
+//Run with: java com.structural.pattern.FlyweightWarmStartBenchmark
+class FlyweightWarmStartBenchmark {
+	private static final int KEYS = 50_000;
+	private static final int WINDOW = 20_000;
+	private static final int WINDOWS = 50;
+
+	//Zipf distributed requests over the key space, each with a fresh Color as callers would pass
+	static Color[] workload(Random random) {
+		double[] cumulative = new double[KEYS];
+		double total = 0;
+		for (int i = 0; i < KEYS; i++) {
+			total += 1.0 / (i + 1);
+			cumulative[i] = total;
+		}
+		Color[] requests = new Color[WINDOW * WINDOWS];
+		for (int i = 0; i < requests.length; i++) {
+			int key = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+			requests[i] = new Color("color-" + (key < 0 ? -key - 1 : key));
+		}
+		return requests;
+	}
+
+	//Average ns per lookup of each window of requests
+	static double[] run(Color[] requests) {
+		double[] windows = new double[WINDOWS];
+		for (int w = 0; w < WINDOWS; w++) {
+			long start = System.nanoTime();
+			for (int i = w * WINDOW; i < (w + 1) * WINDOW; i++) {
+				VehicalFactory.createVehicle(requests[i]);
+			}
+			windows[w] = (System.nanoTime() - start) / (double) WINDOW;
+		}
+		return windows;
+	}
+
+	//Requests served until the window latency stays within 1.5x of the final windows
+	static int steadyAfter(double[] windows) {
+		double steady = (windows[WINDOWS - 1] + windows[WINDOWS - 2] + windows[WINDOWS - 3]) / 3;
+		int last = 0;
+		for (int w = 0; w < WINDOWS; w++) {
+			if (windows[w] > steady * 1.5) {
+				last = w + 1;
+			}
+		}
+		return last * WINDOW;
+	}
+
+	static void report(String name, double[] windows, long total) {
+		System.out.printf("%-10s first window %6.0f ns, window 5 %5.0f ns, last %4.0f ns per lookup, steady after %,9d requests, %5.1f ms total%n",
+				name, windows[0], windows[4], windows[WINDOWS - 1], steadyAfter(windows), total / 1e6);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Color[] requests = workload(new Random(7));
+		Path file = Files.createTempFile("flyweights", ".keys");
+		try {
+			//The previous run, which leaves a dump behind; it also warms up the JIT for both measured runs
+			run(requests);
+			int dumped = VehicalFactory.dumpKeys(file);
+			System.out.printf("dumped %,d keys in %,d bytes%n", dumped, Files.size(file));
+
+			for (int round = 0; round < 3; round++) {
+				VehicalFactory.clear();
+				long start = System.nanoTime();
+				double[] cold = run(requests);
+				report("cold", cold, System.nanoTime() - start);
+
+				VehicalFactory.clear();
+				start = System.nanoTime();
+				CompletableFuture<Integer> preload = VehicalFactory.warmStart(file);
+				double[] warm = run(requests);
+				long total = System.nanoTime() - start;
+				preload.join();
+				report("warm start", warm, total);
+			}
+			System.out.println("pool size after warm start: " + VehicalFactory.size());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
+
 public class FlyweightPattern {
+	//Records two lookups of one color and checks the events, run by PatternEvents
+	static int checkEvents() throws Exception {
+		List<RecordedEvent> events = PatternEventRecorder.record(() -> {
+			Color red = new Color("Red");
+			VehicalFactory.createVehicle(red);
+			VehicalFactory.createVehicle(red);
+		}, PatternEvents.FLYWEIGHT_LOOKUP, PatternEvents.FLYWEIGHT_CREATION);
+		List<RecordedEvent> lookups = PatternEventRecorder.named(events, PatternEvents.FLYWEIGHT_LOOKUP);
+		PatternEventRecorder.check(lookups.size() == 2 && !lookups.get(0).getBoolean("hit") && lookups.get(1).getBoolean("hit")
+				&& "Red".equals(lookups.get(1).getString("key")), "one flyweight miss then one hit");
+		PatternEventRecorder.check(PatternEventRecorder.named(events, PatternEvents.FLYWEIGHT_CREATION).size() == 1,
+				"one flyweight creation");
+		return events.size();
+	}
+
 	public static void main(String[] args) {
 		VehicalFactory factory = new VehicalFactory();
 		Color color = new Color("Blue");
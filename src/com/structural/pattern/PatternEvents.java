@@ -0,0 +1,26 @@
+package com.structural.pattern;
+
+/*
+  JDK Flight Recorder events for the structural patterns.
+  Each event type is declared next to the pattern that emits it:
+  	FlyweightLookup, FlyweightCreation (FlyweightPattern), SessionOperation (ProxyPattern),
+  	AdapterConversion (AdapterPattern), CompositeSize (CompositePattern).
+  They are disabled by default (see com.common.pattern.PatternEventRecorder).
+  Enable them in a .jfc file or on a Recording, e.g.
+  	recording.enable("com.structural.pattern.SessionOperation");
+  
+  Running this class records a short session over every pattern and checks the expected events and fields.
+ */
+public class PatternEvents {
+	static final String FLYWEIGHT_LOOKUP = "com.structural.pattern.FlyweightLookup";
+	static final String FLYWEIGHT_CREATION = "com.structural.pattern.FlyweightCreation";
+	static final String SESSION_OPERATION = "com.structural.pattern.SessionOperation";
+	static final String ADAPTER_CONVERSION = "com.structural.pattern.AdapterConversion";
+	static final String COMPOSITE_SIZE = "com.structural.pattern.CompositeSize";
+
+	public static void main(String[] args) throws Exception {
+		int events = FlyweightPattern.checkEvents() + ProxyPattern.checkEvents() + AdapterPattern.checkEvents()
+				+ CompositePattern.checkEvents();
+		System.out.println("Recorded " + events + " pattern events: OK");
+	}
+}
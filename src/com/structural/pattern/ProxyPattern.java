@@ -1,4 +1,41 @@
 package com.structural.pattern;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.common.pattern.PatternEventRecorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
 /*
   Proxy :
   The Proxy design pattern provides a placeholder for another object in order to control access to it. 
@@ -94,7 +131,164 @@ interface Session {
     public void sendData(String data) throws Exception;
 }
 
-class RealSession implements Session {
+//Point in time by which an operation has to finish. It is passed down through every session layer.
+final class Deadline {
+	private static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+	private final long nanoTime;
+
+	private Deadline(long nanoTime) {
+		this.nanoTime = nanoTime;
+	}
+
+	public static Deadline none() {
+		return NONE;
+	}
+
+	public static Deadline after(Duration timeout) {
+		return new Deadline(System.nanoTime() + timeout.toNanos());
+	}
+
+	public boolean hasLimit() {
+		return this != NONE;
+	}
+
+	public long remainingNanos() {
+		return hasLimit() ? nanoTime - System.nanoTime() : Long.MAX_VALUE;
+	}
+
+	public boolean isExpired() {
+		return remainingNanos() <= 0;
+	}
+}
+
+//Non blocking counterpart of Session. Cancelling a returned future cancels the work behind it, and the
+//deadline is enforced (TimeoutException) and handed on to the next layer.
+interface AsyncSession {
+	public CompletableFuture<Boolean> loginAsync(String username, String password, Deadline deadline);
+	public CompletableFuture<Void> logoutAsync(Deadline deadline);
+	public CompletableFuture<Void> sendDataAsync(String data, Deadline deadline);
+	
+	default CompletableFuture<Boolean> loginAsync(String username, String password) {
+		return loginAsync(username, password, Deadline.none());
+	}
+	
+	default CompletableFuture<Void> logoutAsync() {
+		return logoutAsync(Deadline.none());
+	}
+	
+	default CompletableFuture<Void> sendDataAsync(String data) {
+		return sendDataAsync(data, Deadline.none());
+	}
+	
+	//The session itself when it is already asynchronous, otherwise it is run on BlockingSessionAdapter's threads
+	static AsyncSession of(Session session) {
+		return session instanceof AsyncSession ? (AsyncSession) session : new BlockingSessionAdapter(session);
+	}
+}
+
+//Runs a blocking Session on its own threads: virtual threads when the runtime has them (Java 21+), otherwise a
+//cached pool of daemon threads. Cancellation and an expired deadline interrupt the blocked call.
+class BlockingSessionAdapter implements AsyncSession {
+	private static volatile ExecutorService defaultExecutor;
+	private final Session session;
+	private final ExecutorService executor;
+	
+	public BlockingSessionAdapter(Session session) {
+		this(session, defaultExecutor());
+	}
+	
+	public BlockingSessionAdapter(Session session, ExecutorService executor) {
+		this.session = session;
+		this.executor = executor;
+	}
+	
+	static ExecutorService defaultExecutor() {
+		ExecutorService executor = defaultExecutor;
+		if (executor == null) {
+			synchronized (BlockingSessionAdapter.class) {
+				executor = defaultExecutor;
+				if (executor == null) {
+					executor = newThreadPerTaskExecutor();
+					defaultExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+	
+	private static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) MethodHandles.publicLookup()
+					.findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class))
+					.invoke();
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			return Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, "blocking-session");
+				thread.setDaemon(true);
+				return thread;
+			});
+		} catch (Throwable e) {
+			throw new IllegalStateException("Cannot create session executor", e);
+		}
+	}
+	
+	public CompletableFuture<Boolean> loginAsync(String username, String password, Deadline deadline) {
+		return run(deadline, () -> session.login(username, password));
+	}
+	
+	public CompletableFuture<Void> logoutAsync(Deadline deadline) {
+		return run(deadline, () -> {
+			session.logout();
+			return null;
+		});
+	}
+	
+	public CompletableFuture<Void> sendDataAsync(String data, Deadline deadline) {
+		return run(deadline, () -> {
+			session.sendData(data);
+			return null;
+		});
+	}
+	
+	private <T> CompletableFuture<T> run(Deadline deadline, Callable<T> call) {
+		if (deadline.isExpired()) {
+			return CompletableFuture.failedFuture(new TimeoutException("Deadline expired before the call started"));
+		}
+		CompletableFuture<T> result = new CompletableFuture<>();
+		Future<?> task = executor.submit(() -> {
+			try {
+				result.complete(call.call());
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			}
+		});
+		result.whenComplete((value, failure) -> {
+			if (failure != null) {
+				task.cancel(true);
+			}
+		});
+		if (deadline.hasLimit()) {
+			result.orTimeout(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+		}
+		return result;
+	}
+	
+	//Dependent stage whose cancellation (or timeout) is passed back to the source stage
+	static <T, U> CompletableFuture<U> derive(CompletableFuture<T> source, Deadline deadline, Function<? super T, ? extends U> mapper) {
+		CompletableFuture<U> derived = source.thenApply(mapper);
+		derived.whenComplete((value, failure) -> {
+			if (failure != null) {
+				source.cancel(true);
+			}
+		});
+		if (deadline.hasLimit()) {
+			derived.orTimeout(Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS);
+		}
+		return derived;
+	}
+}
+
+class RealSession implements Session, AsyncSession {
 	public boolean login(String username,String password) {
 		 System.out.println("Logging in with username: "+username +" and password: "+ password);
 	     // Do actual login work here
@@ -108,42 +302,426 @@ class RealSession implements Session {
     public void sendData(String data) throws Exception {
     	System.out.println("Sending data: " + data);
     }
+    
+    //The work above does not block, so the asynchronous calls complete on the caller's thread
+    public CompletableFuture<Boolean> loginAsync(String username, String password, Deadline deadline) {
+    	if (deadline.isExpired()) {
+    		return CompletableFuture.failedFuture(new TimeoutException("Login deadline expired"));
+    	}
+    	return CompletableFuture.completedFuture(login(username, password));
+    }
+    
+    public CompletableFuture<Void> logoutAsync(Deadline deadline) {
+    	if (deadline.isExpired()) {
+    		return CompletableFuture.failedFuture(new TimeoutException("Logout deadline expired"));
+    	}
+    	logout();
+    	return CompletableFuture.completedFuture(null);
+    }
+    
+    public CompletableFuture<Void> sendDataAsync(String data, Deadline deadline) {
+    	if (deadline.isExpired()) {
+    		return CompletableFuture.failedFuture(new TimeoutException("Send deadline expired"));
+    	}
+    	try {
+    		sendData(data);
+    		return CompletableFuture.completedFuture(null);
+    	} catch (Exception e) {
+    		return CompletableFuture.failedFuture(e);
+    	}
+    }
 }
 
-class ProxySession implements Session {
+//Flight recorder event of the proxy, see PatternEvents
+@Name("com.structural.pattern.SessionOperation")
+@Label("Session Operation")
+@Category({ "Design Patterns", "Proxy" })
+@Enabled(false)
+@StackTrace(false)
+class SessionOperationEvent extends Event {
+	@Label("Operation")
+	String operation;
+
+	@Label("User")
+	String user;
+
+	@Label("Success")
+	boolean success;
+
+	@Label("Asynchronous")
+	boolean async;
+}
+
+class ProxySession implements Session, AsyncSession {
 	private Session realSession;
-	private boolean isLoggedIn = false;
+	private AsyncSession asyncRealSession;
+	private volatile boolean isLoggedIn = false;
+	private volatile String username;
+	//Optional persistence of the login state across restarts
+	private final SessionSnapshotStore store;
+	private final int sessionId;
+	private volatile boolean restored;
 	 
 	public ProxySession(Session realSession) {
+		this(realSession, null, -1);
+	}
+	
+	//The login state is restored from the store the first time the session is used, not when it is created
+	public ProxySession(Session realSession, SessionSnapshotStore store, int sessionId) {
 		this.realSession = realSession;
+		this.asyncRealSession = AsyncSession.of(realSession);
+		this.store = store;
+		this.sessionId = sessionId;
+		this.restored = store == null;
+	}
+	
+	public boolean isLoggedIn() {
+		restore();
+		return isLoggedIn;
+	}
+	
+	private void restore() {
+		if (!restored) {
+			synchronized (this) {
+				if (!restored) {
+					SessionSnapshotStore.SessionState state = store.read(sessionId);
+					if (state != null) {
+						username = state.getUsername();
+						isLoggedIn = state.isLoggedIn();
+					}
+					restored = true;
+				}
+			}
+		}
+	}
+	
+	private void loggedIn(String username) {
+		restored = true;
+		this.username = username;
+		isLoggedIn = true;
+		if (store != null) {
+			store.update(sessionId, true, username);
+		}
+	}
+	
+	//A username the store cannot hold is refused before the real session is asked to log in
+	private void checkStorable(String username) {
+		if (store != null) {
+			SessionSnapshotStore.checkUsername(username);
+		}
+	}
+	
+	private void loggedOut() {
+		restored = true;
+		isLoggedIn = false;
+		username = null;
+		if (store != null) {
+			store.update(sessionId, false, null);
+		}
 	}
 	
     public boolean login(String username,String password) {
-        if (realSession.login(username, password)) {
-            isLoggedIn = true;
-            return true;
+    	checkStorable(username);
+    	SessionOperationEvent event = new SessionOperationEvent();
+    	event.begin();
+    	boolean success = realSession.login(username, password);
+        if (success) {
+            loggedIn(username);
         }
-        return false;
+        commit(event, "login", username, success);
+        return success;
     }
 
     public void logout() { 
-        isLoggedIn = false;
+    	SessionOperationEvent event = new SessionOperationEvent();
+    	event.begin();
+    	restore();
+    	String user = username;
+        loggedOut();
         realSession.logout();
+        commit(event, "logout", user, true);
     }
 
     public void sendData(String data) throws Exception {
-        if (isLoggedIn) {
+    	SessionOperationEvent event = new SessionOperationEvent();
+    	event.begin();
+        if (isLoggedIn()) {
             realSession.sendData(data);
+            commit(event, "sendData", username, true);
         } else {
+        	commit(event, "sendData", null, false);
             throw new Exception("Cannot send data without logging in first.");
         }
     }
+    
+    //The asynchronous operations commit their event when the returned future completes
+    public CompletableFuture<Boolean> loginAsync(String username, String password, Deadline deadline) {
+    	try {
+    		checkStorable(username);
+    	} catch (IllegalArgumentException e) {
+    		return CompletableFuture.failedFuture(e);
+    	}
+    	SessionOperationEvent event = new SessionOperationEvent();
+    	event.begin();
+    	CompletableFuture<Boolean> login = BlockingSessionAdapter.derive(asyncRealSession.loginAsync(username, password, deadline),
+    			deadline, success -> {
+    		if (success) {
+    			loggedIn(username);
+    		}
+    		return success;
+    	});
+    	login.whenComplete((success, e) -> commitAsync(event, "login", username, e == null && success));
+    	return login;
+    }
+    
+    public CompletableFuture<Void> logoutAsync(Deadline deadline) {
+    	SessionOperationEvent event = new SessionOperationEvent();
+    	event.begin();
+    	restore();
+    	String user = username;
+    	loggedOut();
+    	CompletableFuture<Void> logout = asyncRealSession.logoutAsync(deadline);
+    	logout.whenComplete((ignored, e) -> commitAsync(event, "logout", user, e == null));
+    	return logout;
+    }
+    
+    public CompletableFuture<Void> sendDataAsync(String data, Deadline deadline) {
+    	SessionOperationEvent event = new SessionOperationEvent();
+    	event.begin();
+    	if (!isLoggedIn()) {
+    		commitAsync(event, "sendData", null, false);
+    		return CompletableFuture.failedFuture(new Exception("Cannot send data without logging in first."));
+    	}
+    	String user = username;
+    	CompletableFuture<Void> send = asyncRealSession.sendDataAsync(data, deadline);
+    	send.whenComplete((ignored, e) -> commitAsync(event, "sendData", user, e == null));
+    	return send;
+    }
+    
+    private static void commitAsync(SessionOperationEvent event, String operation, String user, boolean success) {
+    	if (event.shouldCommit()) {
+    		event.async = true;
+    	}
+    	commit(event, operation, user, success);
+    }
+    
+    private static void commit(SessionOperationEvent event, String operation, String user, boolean success) {
+    	if (event.shouldCommit()) {
+    		event.operation = operation;
+    		event.user = user;
+    		event.success = success;
+    		event.commit();
+    	}
+    }
+}
+
+//Login state of ProxySessions kept in a memory mapped file so a restarted service does not force every user to
+//log in again. Each session id owns one fixed size record at id * RECORD_SIZE:
+//  byte 0: flags (1 = record present, 2 = logged in), byte 1: username length, bytes 2..63: UTF-8 username.
+//Changes are collected in memory and only the changed records are written by snapshot(), which can also run
+//periodically. Records are read back one by one when a session is first used.
+class SessionSnapshotStore implements AutoCloseable {
+	static final int RECORD_SIZE = 64;
+	static final int MAX_USERNAME_BYTES = RECORD_SIZE - 2;
+	private static final byte PRESENT = 1;
+	private static final byte LOGGED_IN = 2;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final Object lock = new Object();
+	//Held for a whole snapshot, so batches reach the file in the order they were taken
+	private final Object snapshotLock = new Object();
+	private Map<Integer, SessionState> dirty = new HashMap<>();
+	//The batch being written by snapshot(), still visible to read() until it is in the file
+	private Map<Integer, SessionState> writing = Collections.emptyMap();
+	private ScheduledExecutorService scheduler;
+
+	static final class SessionState {
+		private final boolean loggedIn;
+		private final String username;
+
+		SessionState(boolean loggedIn, String username) {
+			this.loggedIn = loggedIn;
+			this.username = username;
+		}
+
+		public boolean isLoggedIn() {
+			return loggedIn;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+	}
+
+	//Maps the file, creating or growing it to hold capacity records; nothing is read up front
+	public static SessionSnapshotStore open(Path file, int capacity) throws IOException {
+		if (capacity <= 0 || (long) capacity * RECORD_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("capacity out of range: " + capacity);
+		}
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			return new SessionSnapshotStore(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					(long) capacity * RECORD_SIZE), capacity);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private SessionSnapshotStore(FileChannel channel, MappedByteBuffer buffer, int capacity) {
+		this.channel = channel;
+		this.buffer = buffer;
+		this.capacity = capacity;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	//Remembers the new state; it reaches the file with the next snapshot()
+	public void update(int sessionId, boolean loggedIn, String username) {
+		checkId(sessionId);
+		checkUsername(username);
+		synchronized (lock) {
+			dirty.put(sessionId, new SessionState(loggedIn, username));
+		}
+	}
+
+	//State of a session, preferring changes that are not written yet; null when nothing was ever stored
+	public SessionState read(int sessionId) {
+		checkId(sessionId);
+		synchronized (lock) {
+			SessionState pending = dirty.get(sessionId);
+			if (pending == null) {
+				pending = writing.get(sessionId);
+			}
+			if (pending != null) {
+				return pending;
+			}
+		}
+		int offset = sessionId * RECORD_SIZE;
+		byte flags = buffer.get(offset);
+		if ((flags & PRESENT) == 0) {
+			return null;
+		}
+		String username = null;
+		int length = buffer.get(offset + 1) & 0xFF;
+		if (length > 0) {
+			byte[] bytes = new byte[length];
+			buffer.get(offset + 2, bytes);
+			username = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new SessionState((flags & LOGGED_IN) != 0, username);
+	}
+
+	//Writes the records changed since the last snapshot and flushes them; returns how many were written. If the
+	//write fails the batch is kept, minus the sessions that changed again meanwhile, for the next snapshot.
+	public int snapshot() {
+		synchronized (snapshotLock) {
+			Map<Integer, SessionState> changes;
+			synchronized (lock) {
+				if (dirty.isEmpty()) {
+					return 0;
+				}
+				changes = dirty;
+				writing = changes;
+				dirty = new HashMap<>();
+			}
+			boolean written = false;
+			try {
+				byte[] record = new byte[RECORD_SIZE];
+				for (Map.Entry<Integer, SessionState> change : changes.entrySet()) {
+					encode(change.getValue(), record);
+					buffer.put(change.getKey() * RECORD_SIZE, record);
+				}
+				buffer.force();
+				written = true;
+			} finally {
+				synchronized (lock) {
+					if (!written) {
+						changes.forEach(dirty::putIfAbsent);
+					}
+					writing = Collections.emptyMap();
+				}
+			}
+			return changes.size();
+		}
+	}
+
+	public void startPeriodicSnapshots(Duration interval) {
+		synchronized (lock) {
+			if (scheduler != null) {
+				throw new IllegalStateException("Periodic snapshots already running");
+			}
+			scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread thread = new Thread(task, "session-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		long millis = interval.toMillis();
+		//A failed run must not cancel the schedule; its changes are retried with the next one
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				snapshot();
+			} catch (RuntimeException e) {
+				System.err.println("Session snapshot failed: " + e);
+			}
+		}, millis, millis, TimeUnit.MILLISECONDS);
+	}
+
+	//Stops periodic snapshots and writes the last changes
+	public void close() throws IOException {
+		ScheduledExecutorService running;
+		synchronized (lock) {
+			running = scheduler;
+			scheduler = null;
+		}
+		if (running != null) {
+			running.shutdown();
+			try {
+				running.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		snapshot();
+		channel.close();
+	}
+
+	private static void encode(SessionState state, byte[] record) {
+		Arrays.fill(record, (byte) 0);
+		record[0] = (byte) (PRESENT | (state.isLoggedIn() ? LOGGED_IN : 0));
+		if (state.getUsername() != null) {
+			byte[] name = state.getUsername().getBytes(StandardCharsets.UTF_8);
+			record[1] = (byte) name.length;
+			System.arraycopy(name, 0, record, 2, name.length);
+		}
+	}
+
+	//Rejects usernames that do not fit into a record
+	static void checkUsername(String username) {
+		if (username != null && username.getBytes(StandardCharsets.UTF_8).length > MAX_USERNAME_BYTES) {
+			throw new IllegalArgumentException("Username longer than " + MAX_USERNAME_BYTES + " bytes in UTF-8");
+		}
+	}
+
+	private void checkId(int sessionId) {
+		if (sessionId < 0 || sessionId >= capacity) {
+			throw new IndexOutOfBoundsException("session id " + sessionId + ", capacity " + capacity);
+		}
+	}
 }
 
 class WebApp {
 	private Session session;
+	private AsyncSession asyncSession;
 	public WebApp(Session session) {
 		this.session = session;
+		this.asyncSession = AsyncSession.of(session);
 	}
 	
 	public boolean login(String username,String password) {
@@ -157,9 +735,285 @@ class WebApp {
 	public void sendData(String data) throws Exception {
         session.sendData(data);
     }
+	
+	//Asynchronous calls do not hold a WebApp thread while the session works
+	public CompletableFuture<Boolean> loginAsync(String username, String password, Deadline deadline) {
+		return asyncSession.loginAsync(username, password, deadline);
+	}
+	
+	public CompletableFuture<Void> logoutAsync(Deadline deadline) {
+		return asyncSession.logoutAsync(deadline);
+	}
+	
+	public CompletableFuture<Void> sendDataAsync(String data, Deadline deadline) {
+		return asyncSession.sendDataAsync(data, deadline);
+	}
+}
+
+//100k concurrent simulated sessions (login, sendData, logout with remote latency) through the asynchronous API
+//against the blocking API on a pool of platform threads.
+//Run with: java com.structural.pattern.AsyncSessionBenchmark [sessions]
+class AsyncSessionBenchmark {
+	private static final long LATENCY_MILLIS = 2;
+	private static final int PLATFORM_THREADS = 200;
+
+	//Remote session: the blocking calls sleep for the round trip, the asynchronous calls complete from a timer
+	static class SimulatedRemoteSession implements Session, AsyncSession {
+		private final ScheduledExecutorService timer;
+
+		SimulatedRemoteSession(ScheduledExecutorService timer) {
+			this.timer = timer;
+		}
+
+		public boolean login(String username, String password) {
+			pause();
+			return true;
+		}
+
+		public void logout() {
+			pause();
+		}
+
+		public void sendData(String data) {
+			pause();
+		}
+
+		private static void pause() {
+			try {
+				Thread.sleep(LATENCY_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public CompletableFuture<Boolean> loginAsync(String username, String password, Deadline deadline) {
+			return later(true, deadline);
+		}
+
+		public CompletableFuture<Void> logoutAsync(Deadline deadline) {
+			return later(null, deadline);
+		}
+
+		public CompletableFuture<Void> sendDataAsync(String data, Deadline deadline) {
+			return later(null, deadline);
+		}
+
+		private <T> CompletableFuture<T> later(T value, Deadline deadline) {
+			CompletableFuture<T> result = new CompletableFuture<>();
+			Future<?> reply = timer.schedule(() -> result.complete(value), LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+			result.whenComplete((ignored, failure) -> reply.cancel(false));
+			if (deadline.hasLimit()) {
+				result.orTimeout(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+			}
+			return result;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		try {
+			long start = System.nanoTime();
+			CompletableFuture<?>[] flows = new CompletableFuture<?>[sessions];
+			for (int i = 0; i < sessions; i++) {
+				WebApp webApp = new WebApp(new ProxySession(new SimulatedRemoteSession(timer)));
+				Deadline deadline = Deadline.after(Duration.ofSeconds(30));
+				String user = "user" + i;
+				flows[i] = webApp.loginAsync(user, "secret", deadline)
+						.thenCompose(ok -> webApp.sendDataAsync("payload", deadline))
+						.thenCompose(ignored -> webApp.logoutAsync(deadline));
+			}
+			CompletableFuture.allOf(flows).join();
+			report("async", sessions, System.nanoTime() - start);
+
+			ExecutorService pool = Executors.newFixedThreadPool(PLATFORM_THREADS);
+			start = System.nanoTime();
+			Future<?>[] blocking = new Future<?>[sessions];
+			for (int i = 0; i < sessions; i++) {
+				WebApp webApp = new WebApp(new ProxySession(new SimulatedRemoteSession(timer)));
+				String user = "user" + i;
+				blocking[i] = pool.submit(() -> {
+					webApp.login(user, "secret");
+					webApp.sendData("payload");
+					webApp.logout();
+					return null;
+				});
+			}
+			for (Future<?> future : blocking) {
+				future.get();
+			}
+			report("blocking, " + PLATFORM_THREADS + " platform threads", sessions, System.nanoTime() - start);
+			pool.shutdown();
+
+			CompletableFuture<Boolean> cancelled = new BlockingSessionAdapter(new SimulatedRemoteSession(timer))
+					.loginAsync("late", "secret", Deadline.after(Duration.ofNanos(1)));
+			System.out.println("expired deadline: " + cancelled.handle((ok, e) -> e).join());
+		} finally {
+			timer.shutdownNow();
+		}
+	}
+
+	static void report(String name, int sessions, long nanos) {
+		System.out.printf("%-32s %,d sessions in %,.0f ms, %,.0f sessions/s%n", name, sessions, nanos / 1e6,
+				sessions / (nanos / 1e9));
+	}
+}
+
+//Snapshot write overhead and restart-to-serving time with 10^6 sessions.
+//Run with: java com.structural.pattern.SessionSnapshotBenchmark [sessions]
+class SessionSnapshotBenchmark {
+	private static final int RESTART_RUNS = 5;
+
+	//Backend without console output
+	static class QuietSession implements Session {
+		final AtomicLong logins = new AtomicLong();
+
+		public boolean login(String username, String password) {
+			logins.incrementAndGet();
+			return true;
+		}
+
+		public void logout() {
+		}
+
+		public void sendData(String data) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		Path file = Files.createTempFile("sessions", ".snapshot");
+		try {
+			QuietSession backend = new QuietSession();
+			SessionSnapshotStore store = SessionSnapshotStore.open(file, sessions);
+			ProxySession[] proxies = new ProxySession[sessions];
+			for (int i = 0; i < sessions; i++) {
+				proxies[i] = new ProxySession(backend, store, i);
+				proxies[i].login("user" + i, "secret");
+			}
+			long start = System.nanoTime();
+			int written = store.snapshot();
+			System.out.printf("full snapshot: %,d records in %.1f ms%n", written, (System.nanoTime() - start) / 1e6);
+			for (int i = 0; i < sessions; i += 100) {
+				proxies[i].logout();
+			}
+			start = System.nanoTime();
+			written = store.snapshot();
+			System.out.printf("incremental snapshot: %,d records in %.1f ms%n", written, (System.nanoTime() - start) / 1e6);
+			store.close();
+			proxies = null;
+
+			proxies = null;
+
+			//Restart: map the file, create the proxies and serve the first request of a 1% sample. Each run starts
+			//on a collected heap, so garbage from the write phase or an earlier run is not charged to it.
+			long[] serving = new long[RESTART_RUNS];
+			long[] firstRequests = new long[RESTART_RUNS];
+			long[] eager = new long[RESTART_RUNS];
+			long logins = 0;
+			int loggedIn = 0;
+			int active = 0;
+			for (int run = 0; run < RESTART_RUNS; run++) {
+				settle();
+				long loginsBefore = backend.logins.get();
+				start = System.nanoTime();
+				SessionSnapshotStore reopened = SessionSnapshotStore.open(file, sessions);
+				ProxySession[] restarted = new ProxySession[sessions];
+				for (int i = 0; i < sessions; i++) {
+					restarted[i] = new ProxySession(backend, reopened, i);
+				}
+				serving[run] = System.nanoTime() - start;
+				loggedIn = 0;
+				for (int i = 1; i < sessions; i += 100) {
+					restarted[i].sendData("hello");
+					loggedIn++;
+				}
+				firstRequests[run] = System.nanoTime() - start - serving[run];
+				logins = backend.logins.get() - loginsBefore;
+				restarted = null;
+				reopened.close();
+
+				//Eager restart: the same steps, but every record is decoded before serving
+				settle();
+				start = System.nanoTime();
+				reopened = SessionSnapshotStore.open(file, sessions);
+				restarted = new ProxySession[sessions];
+				active = 0;
+				for (int i = 0; i < sessions; i++) {
+					restarted[i] = new ProxySession(backend, reopened, i);
+					SessionSnapshotStore.SessionState state = reopened.read(i);
+					if (state != null && state.isLoggedIn()) {
+						active++;
+					}
+				}
+				eager[run] = System.nanoTime() - start;
+				restarted = null;
+				reopened.close();
+			}
+			System.out.printf("lazy restart (median of %d): serving after %.1f ms, first request of %,d sessions took %.1f ms, "
+					+ "%d backend logins%n", RESTART_RUNS, median(serving) / 1e6, loggedIn, median(firstRequests) / 1e6, logins);
+			System.out.printf("eager restart for comparison (median of %d): serving after %.1f ms, %,d logged in sessions "
+					+ "decoded%n", RESTART_RUNS, median(eager) / 1e6, active);
+			checkLongUsername();
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	static void settle() throws InterruptedException {
+		System.gc();
+		Thread.sleep(200);
+	}
+
+	static long median(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	//A username that does not fit is refused at login and never reaches a snapshot
+	static void checkLongUsername() throws IOException {
+		Path file = Files.createTempFile("sessions", ".snapshot");
+		try (SessionSnapshotStore store = SessionSnapshotStore.open(file, 4)) {
+			ProxySession ok = new ProxySession(new QuietSession(), store, 2);
+			ProxySession tooLong = new ProxySession(new QuietSession(), store, 3);
+			ok.login("alice", "secret");
+			try {
+				tooLong.login("x".repeat(SessionSnapshotStore.MAX_USERNAME_BYTES + 1), "secret");
+				throw new AssertionError("long username accepted");
+			} catch (IllegalArgumentException expected) {
+				// refused before logging in
+			}
+			if (tooLong.isLoggedIn() || store.snapshot() != 1 || !"alice".equals(store.read(2).getUsername())) {
+				throw new AssertionError("snapshot lost or mixed up state");
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+		System.out.println("long username check: OK");
+	}
 }
 
 public class ProxyPattern {
+	//Records a login, a send and a logout through the proxy and checks the events, run by PatternEvents
+	static int checkEvents() throws Exception {
+		List<RecordedEvent> events = PatternEventRecorder.record(() -> {
+			WebApp webApp = new WebApp(new ProxySession(new RealSession()));
+			webApp.login("user123", "password123");
+			webApp.sendData("Hello events!");
+			webApp.logout();
+			webApp.loginAsync("user123", "password123", Deadline.none())
+					.thenCompose(ok -> webApp.sendDataAsync("Hello async events!", Deadline.none()))
+					.thenCompose(ignored -> webApp.logoutAsync(Deadline.none())).join();
+		}, PatternEvents.SESSION_OPERATION);
+		List<String> operations = events.stream().map(e -> e.getString("operation") + (e.getBoolean("async") ? "Async" : ""))
+				.collect(Collectors.toList());
+		PatternEventRecorder.check(operations.equals(List.of("login", "sendData", "logout", "loginAsync", "sendDataAsync", "logoutAsync")),
+				"session operations " + operations);
+		PatternEventRecorder.check(events.stream().allMatch(e -> "user123".equals(e.getString("user")) && e.getBoolean("success")),
+				"session operations carry user and success");
+		return events.size();
+	}
 
 	public static void main(String[] args) {
 		Session realSession = new RealSession();